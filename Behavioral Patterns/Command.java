@@ -1,13 +1,37 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
 
 // The base command class defines the common interface for all
 // concrete commands.
 
-import java.util.ArrayList;
-
 abstract class AbstractCommand {
     protected Application app;
     protected Editor editor;
-    protected String backup;
+    // Instead of a copy of the whole text, a command remembers the
+    // edit it made. Undo memory then grows with the size of the
+    // edits, not the size of the document.
+    protected TextDelta delta;
 
     AbstractCommand() { }
 
@@ -16,14 +40,22 @@ abstract class AbstractCommand {
         this.editor = editor;
     }
 
-    // Make a backup of the editor's state.
-    public void saveBackup() {
-        this.backup = this.editor.text;
-    }
-
     // Restore the editor's state.
     public void undo() {
-        this.editor.text = this.backup;
+        if(this.delta != null) this.editor.revert(this.delta);
+    }
+
+    // Apply the recorded edit again after it was undone.
+    public void redo() {
+        if(this.delta != null) this.editor.apply(this.delta);
+    }
+
+    // Called by the history with the command that ran right after
+    // this one. A command that can fold the next one into its own
+    // edit (like a run of typed characters) does so and returns
+    // true; the next command then gets no history entry of its own.
+    public boolean absorb(AbstractCommand next) {
+        return false;
     }
 
     // The execution method is declared abstract to force all
@@ -33,8 +65,25 @@ abstract class AbstractCommand {
     abstract boolean execute();
 }
 
+// A reversible edit: at offset, the removed text was replaced by
+// the inserted text. Both are ropes that share structure with the
+// document, so even a huge cut costs O(log n) memory here.
+class TextDelta {
+    final int offset;
+    final Rope removed;
+    final Rope inserted;
+
+    TextDelta(int offset, Rope removed, Rope inserted) {
+        this.offset = offset;
+        this.removed = removed;
+        this.inserted = inserted;
+    }
+}
+
 // The concrete commands go here.
 class CopyCommand extends AbstractCommand {
+    CopyCommand(Application app, Editor editor) { super(app, editor); }
+
     // The copy command isn't saved to the history since it
     // doesn't change the editor's state.
     @Override
@@ -45,30 +94,67 @@ class CopyCommand extends AbstractCommand {
 }
 
 class CutCommand extends AbstractCommand {
+    CutCommand(Application app, Editor editor) { super(app, editor); }
+
     // The cut command does change the editor's state, therefore
     // it must be saved to the history. And it'll be saved as
     // long as the method returns true.
     @Override
     public boolean execute() {
-        this.saveBackup();
         this.app.clipboard = this.editor.getSelection();
-        this.editor.deleteSelection();
+        this.delta = this.editor.deleteSelection();
         return true;
     }
 }
 
 class PasteCommand extends AbstractCommand {
+    PasteCommand(Application app, Editor editor) { super(app, editor); }
+
     @Override
     public boolean execute() {
-        this.saveBackup();
-        this.app.clipboard = this.editor.getSelection();
-        this.editor.deleteSelection();
+        if(this.app.clipboard == null) return false;
+        this.delta = this.editor.replaceSelection(this.app.clipboard);
+        return true;
+    }
+}
+
+// Typing inserts text at the cursor. Consecutive keystrokes are
+// merged a word at a time: each word takes the whitespace typed
+// after it, and the next word starts a new undo step.
+class TypeCommand extends AbstractCommand {
+    private final CharSequence text;
+
+    TypeCommand(Application app, Editor editor, CharSequence text) {
+        super(app, editor);
+        this.text = text;
+    }
+
+    @Override
+    public boolean execute() {
+        this.delta = this.editor.replaceSelection(this.text);
+        return true;
+    }
+
+    @Override
+    public boolean absorb(AbstractCommand next) {
+        if(!(next instanceof TypeCommand) || next.editor != this.editor) return false;
+        TextDelta following = next.delta;
+        int end = this.delta.offset + this.delta.inserted.length();
+        if(following.removed.length() != 0 || following.offset != end) return false;
+        Rope inserted = this.delta.inserted;
+        if(inserted.length() > 0 && following.inserted.length() > 0
+            && Character.isWhitespace(inserted.charAt(inserted.length() - 1))
+            && !Character.isWhitespace(following.inserted.charAt(0))) return false;
+        this.delta = new TextDelta(this.delta.offset, this.delta.removed,
+            inserted.replace(inserted.length(), inserted.length(), following.inserted));
         return true;
     }
 }
 
 // The undo operation is also a command.
 class UndoCommand extends AbstractCommand {
+    UndoCommand(Application app, Editor editor) { super(app, editor); }
+
     @Override
     public boolean execute() {
         this.app.undo();
@@ -76,62 +162,774 @@ class UndoCommand extends AbstractCommand {
     }
 }
 
-// The global command history is just a stack.
+class RedoCommand extends AbstractCommand {
+    RedoCommand(Application app, Editor editor) { super(app, editor); }
+
+    @Override
+    public boolean execute() {
+        this.app.redo();
+        return false;
+    }
+}
+
+// The global command history is just a stack. It's kept in a ring
+// buffer of fixed depth: once it's full, pushing a command drops
+// the oldest one. Undone commands stay behind the top of the stack
+// until they are redone or a new command replaces them.
+//
+// A pushed command that the top one absorbs gets no entry, so
+// undo steps depend only on the edits, not on how or when they
+// were run. An undo or redo closes the top to absorbing.
 class CommandHistory {
-    private ArrayList<AbstractCommand> history = new ArrayList<>();
+    public static final int DEFAULT_DEPTH = 100;
+
+    private final AbstractCommand[] history;
+    private int head = 0;   // index of the oldest command
+    private int size = 0;   // commands that can be undone
+    private int redoable = 0; // undone commands that can be redone
+    private boolean open = false; // whether the top may absorb the next push
+
+    CommandHistory() { this(DEFAULT_DEPTH); }
+
+    CommandHistory(int depth) {
+        if(depth < 1) throw new IllegalArgumentException("depth must be positive: " + depth);
+        this.history = new AbstractCommand[depth];
+    }
+
+    private int slot(int index) {
+        return (this.head + index) % this.history.length;
+    }
 
     // Last in...
     public void push(AbstractCommand c) {
-        // Push the command to the end of the history array.
-        this.history.add(c);
+        if(this.open && this.history[this.slot(this.size - 1)].absorb(c)) return;
+        this.open = true;
+        // A new command makes the undone ones unreachable.
+        for(int i = this.size; i < this.size + this.redoable; i++) this.history[this.slot(i)] = null;
+        this.redoable = 0;
+        if(this.size == this.history.length) {
+            this.history[this.head] = null;
+            this.head = this.slot(1);
+            this.size--;
+        }
+        this.history[this.slot(this.size++)] = c;
     }
 
     // ...first out
     public AbstractCommand pop() {
-        // Get the most recent command from the history.
-        return this.history.get(this.history.size() - 1);
+        // Take the most recent command off the history. It stays
+        // in the buffer so it can be redone.
+        if(this.size == 0) return null;
+        this.open = false;
+        this.redoable++;
+        return this.history[this.slot(--this.size)];
+    }
+
+    // The most recently undone command, back on the stack.
+    public AbstractCommand popRedo() {
+        if(this.redoable == 0) return null;
+        this.open = false;
+        this.redoable--;
+        return this.history[this.slot(this.size++)];
+    }
+
+    public int size() { return this.size; }
+}
+
+// An immutable rope: a randomized balanced tree of text chunks.
+// Inserting, deleting and taking a substring only rebuild the
+// O(log n) nodes along one path and share everything else, so
+// edits anywhere in a huge document are cheap, and a substring is
+// a view that stays valid whatever happens to the document later.
+final class Rope implements CharSequence {
+    private static final int CHUNK = 1024;
+    static final Rope EMPTY = new Rope(null);
+
+    private static final class Node {
+        final Node left, right;
+        final String chunk;
+        final int length; // characters in this subtree
+        final int count;  // nodes in this subtree
+
+        Node(Node left, String chunk, Node right) {
+            this.left = left;
+            this.chunk = chunk;
+            this.right = right;
+            this.length = length(left) + chunk.length() + length(right);
+            this.count = count(left) + 1 + count(right);
+        }
+    }
+
+    private final Node root;
+
+    private Rope(Node root) {
+        this.root = root;
+    }
+
+    static Rope of(CharSequence text) {
+        if(text instanceof Rope) return (Rope) text;
+        String string = text.toString();
+        int chunks = (string.length() + CHUNK - 1) / CHUNK;
+        return new Rope(build(string, 0, chunks));
+    }
+
+    // Builds a perfectly balanced tree over chunks [from, to).
+    private static Node build(String text, int from, int to) {
+        if(from >= to) return null;
+        int mid = (from + to) >>> 1;
+        String chunk = text.substring(mid * CHUNK, Math.min((mid + 1) * CHUNK, text.length()));
+        return new Node(build(text, from, mid), chunk, build(text, mid + 1, to));
+    }
+
+    private static int length(Node node) { return node == null ? 0 : node.length; }
+    private static int count(Node node) { return node == null ? 0 : node.count; }
+
+    // Joins two trees. Picking the root with probability
+    // proportional to subtree size keeps the tree balanced in
+    // expectation, without storing priorities.
+    private static Node merge(Node a, Node b) {
+        if(a == null) return b;
+        if(b == null) return a;
+        if(ThreadLocalRandom.current().nextInt(a.count + b.count) < a.count)
+            return new Node(a.left, a.chunk, merge(a.right, b));
+        return new Node(merge(a, b.left), b.chunk, b.right);
+    }
+
+    private static Node leaf(String chunk) {
+        return chunk.isEmpty() ? null : new Node(null, chunk, null);
+    }
+
+    // Splits into [0, at) and [at, length).
+    private static Node[] split(Node node, int at) {
+        if(node == null) return new Node[] { null, null };
+        int leftLength = length(node.left);
+        if(at <= leftLength) {
+            Node[] parts = split(node.left, at);
+            return new Node[] { parts[0], new Node(parts[1], node.chunk, node.right) };
+        }
+        int chunkEnd = leftLength + node.chunk.length();
+        if(at >= chunkEnd) {
+            Node[] parts = split(node.right, at - chunkEnd);
+            return new Node[] { new Node(node.left, node.chunk, parts[0]), parts[1] };
+        }
+        int cut = at - leftLength;
+        return new Node[] {
+            merge(node.left, leaf(node.chunk.substring(0, cut))),
+            merge(leaf(node.chunk.substring(cut)), node.right)
+        };
+    }
+
+    private void checkRange(int start, int end) {
+        if(start < 0 || end < start || end > this.length())
+            throw new IndexOutOfBoundsException("Range " + start + ".." + end + " outside 0.." + this.length());
+    }
+
+    @Override
+    public int length() {
+        return length(this.root);
+    }
+
+    @Override
+    public char charAt(int index) {
+        if(index < 0 || index >= this.length()) throw new IndexOutOfBoundsException("Index " + index + " outside 0.." + this.length());
+        Node node = this.root;
+        while(true) {
+            int leftLength = length(node.left);
+            if(index < leftLength) {
+                node = node.left;
+            } else if(index < leftLength + node.chunk.length()) {
+                return node.chunk.charAt(index - leftLength);
+            } else {
+                index -= leftLength + node.chunk.length();
+                node = node.right;
+            }
+        }
+    }
+
+    @Override
+    public Rope subSequence(int start, int end) {
+        this.checkRange(start, end);
+        return new Rope(split(split(this.root, end)[0], start)[1]);
+    }
+
+    // Returns a rope with [start, end) replaced by the text.
+    public Rope replace(int start, int end, CharSequence text) {
+        this.checkRange(start, end);
+        Node[] head = split(this.root, start);
+        Node[] tail = split(head[1], end - start);
+        return new Rope(merge(merge(head[0], Rope.of(text).root), tail[1]));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(this.length());
+        append(this.root, builder);
+        return builder.toString();
+    }
+
+    private static void append(Node node, StringBuilder builder) {
+        while(node != null) {
+            append(node.left, builder);
+            builder.append(node.chunk);
+            node = node.right;
+        }
     }
 }
 
 // The editor class has actual text editing operations. It plays
 // the role of a receiver: all commands end up delegating
-// execution to the editor's methods.
+// execution to the editor's methods. Every edit returns the delta
+// describing it, which is all a command needs to undo it.
 class Editor {
-    String text = "Hello world"; // assume the cursor is always last
+    Rope text = Rope.of("Hello world");
+    // The selection; when it's empty it's just the cursor, which
+    // starts at the end of the text.
+    int selectionStart = 11, selectionEnd = 11;
+    // When set, every edit is also written to the journal.
+    CommandJournal journal;
 
-    public String getSelection() {
-        // Return selected text.
-        return this.text;
+    public void select(int start, int end) {
+        if(start < 0 || end < start || end > this.text.length())
+            throw new IndexOutOfBoundsException("Selection " + start + ".." + end + " outside 0.." + this.text.length());
+        this.selectionStart = start;
+        this.selectionEnd = end;
     }
 
-    public void deleteSelection() {
+    public Rope getSelection() {
+        // Return selected text. It's a view, nothing is copied.
+        return this.text.subSequence(this.selectionStart, this.selectionEnd);
+    }
+
+    public TextDelta deleteSelection() {
         // Delete selected text.
-        this.text = null;
+        return this.replaceSelection(Rope.EMPTY);
     }
 
-    public void replaceSelection(String text) {
+    public TextDelta replaceSelection(CharSequence text) {
         // Insert the clipboard's contents at the current
-        // position.
-        this.text += text;
+        // position, replacing the selection.
+        TextDelta delta = new TextDelta(this.selectionStart, this.getSelection(), Rope.of(text));
+        this.apply(delta);
+        return delta;
+    }
+
+    public void apply(TextDelta delta) {
+        this.text = this.text.replace(delta.offset, delta.offset + delta.removed.length(), delta.inserted);
+        this.selectionStart = this.selectionEnd = delta.offset + delta.inserted.length();
+        if(this.journal != null) this.journal.record(delta, this);
+    }
+
+    // Undo an edit; the restored text comes back selected.
+    public void revert(TextDelta delta) {
+        this.text = this.text.replace(delta.offset, delta.offset + delta.inserted.length(), delta.removed);
+        this.selectionStart = delta.offset;
+        this.selectionEnd = delta.offset + delta.removed.length();
+        if(this.journal != null) this.journal.record(new TextDelta(delta.offset, delta.inserted, delta.removed), this);
+    }
+}
+
+// The history only lives in memory. The journal makes the edits
+// themselves durable: each edit is appended to a log file as a
+// small binary record (sequence number, offset, removed length,
+// inserted text, resulting selection, CRC). Records are buffered
+// and a background thread forces them to disk at a fixed interval,
+// so many edits share one fsync; commit() does the same on demand.
+//
+// Every so many edits the journal takes a checkpoint of the whole
+// document. The text is an immutable rope, so capturing it is
+// O(1) and writing it happens in the background. After that the
+// journal starts a new segment and drops the older ones. Recovery
+// loads the checkpoint and replays only the segments written
+// since, so it takes time proportional to the checkpoint interval,
+// not to the whole editing history. Undo history isn't restored,
+// and neither are selection changes made without an edit.
+class CommandJournal implements AutoCloseable {
+    private static final int CHECKPOINT_MAGIC = 0x43484b31; // "CHK1"
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String SEGMENT_PREFIX = "journal-";
+
+    private final Path directory;
+    private final int checkpointEvery;
+    private final ScheduledExecutorService background;
+    private final Object syncLock = new Object();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private FileChannel segment;
+
+    private long sequence;          // last record written
+    private long durableSequence;   // last record forced to disk
+    private long checkpointSequence;
+    private boolean checkpointPending = false, closed = false;
+    private Editor editor;
+    // The document as of the last record, for checkpoints.
+    private Rope latestText;
+    private int latestSelectionStart, latestSelectionEnd;
+
+    private CommandJournal(Path directory, int checkpointEvery) {
+        this.directory = directory;
+        this.checkpointEvery = checkpointEvery;
+        this.background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "command-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Restores the editor from the directory if it holds a journal,
+    // otherwise checkpoints the editor's current state there. From
+    // then on the editor's edits are journaled.
+    static CommandJournal open(Path directory, Editor editor, int checkpointEvery, long syncIntervalMillis) throws IOException {
+        Files.createDirectories(directory);
+        CommandJournal journal = new CommandJournal(directory, checkpointEvery);
+        try {
+            Path checkpoint = directory.resolve(CHECKPOINT);
+            if(Files.exists(checkpoint)) {
+                journal.sequence = journal.checkpointSequence = readCheckpoint(checkpoint, editor);
+                journal.sequence = journal.replay(editor);
+            }
+            // Start from a fresh checkpoint, which also gets rid of a
+            // torn segment tail left by a crash.
+            journal.checkpointSequence = journal.sequence;
+            writeCheckpoint(directory, journal.sequence, editor.text, editor.selectionStart, editor.selectionEnd);
+            for(Path old : journal.segments()) Files.delete(old);
+            journal.durableSequence = journal.sequence;
+            journal.latestText = editor.text;
+            journal.latestSelectionStart = editor.selectionStart;
+            journal.latestSelectionEnd = editor.selectionEnd;
+            journal.segment = journal.openSegment(journal.sequence + 1);
+        } catch(IOException | RuntimeException e) {
+            journal.background.shutdownNow();
+            throw e;
+        }
+        // Group commits only start once there's a segment to force,
+        // however long the replay took.
+        journal.background.scheduleWithFixedDelay(journal::commitQuietly,
+            syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        journal.editor = editor;
+        editor.journal = journal;
+        return journal;
+    }
+
+    synchronized void record(TextDelta delta, Editor editor) {
+        if(this.closed) throw new IllegalStateException("Journal is closed");
+        byte[] inserted = delta.inserted.toString().getBytes(StandardCharsets.UTF_8);
+        int payloadLength = 8 + 4 * 5 + inserted.length;
+        try {
+            if(this.buffer.remaining() < payloadLength + 8) {
+                this.flushBuffer();
+                if(this.buffer.capacity() < payloadLength + 8) this.buffer = ByteBuffer.allocate(payloadLength + 8);
+            }
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int start = this.buffer.position();
+        this.buffer.putInt(payloadLength).putInt(0);
+        this.buffer.putLong(++this.sequence).putInt(delta.offset).putInt(delta.removed.length())
+            .putInt(editor.selectionStart).putInt(editor.selectionEnd).putInt(inserted.length).put(inserted);
+        this.crc.reset();
+        this.crc.update(this.buffer.array(), start + 8, payloadLength);
+        this.buffer.putInt(start + 4, (int) this.crc.getValue());
+
+        this.latestText = editor.text;
+        this.latestSelectionStart = editor.selectionStart;
+        this.latestSelectionEnd = editor.selectionEnd;
+        if(!this.checkpointPending && this.sequence - this.checkpointSequence >= this.checkpointEvery) {
+            this.checkpointPending = true;
+            this.background.execute(this::checkpointQuietly);
+        }
+    }
+
+    // Makes every edit recorded so far durable. Callers that arrive
+    // while a force is running wait and usually find their edits
+    // already covered by it.
+    public void commit() throws IOException {
+        long target;
+        synchronized(this) { target = this.sequence; }
+        synchronized(this.syncLock) {
+            if(this.durableSequence >= target) return;
+            long upTo;
+            FileChannel channel;
+            synchronized(this) {
+                this.flushBuffer();
+                upTo = this.sequence;
+                channel = this.segment;
+            }
+            channel.force(false);
+            this.durableSequence = Math.max(this.durableSequence, upTo);
+        }
+    }
+
+    // Checkpoints the latest state and starts a new segment; the
+    // old segments are deleted once the checkpoint is on disk. Only
+    // the swap to the new segment holds up record(); the old one is
+    // forced and closed outside the monitor, like commit() does.
+    public void checkpoint() throws IOException {
+        long seq;
+        Rope text;
+        int selectionStart, selectionEnd;
+        synchronized(this.syncLock) {
+            FileChannel previous;
+            synchronized(this) {
+                this.flushBuffer();
+                previous = this.segment;
+                seq = this.sequence;
+                text = this.latestText;
+                selectionStart = this.latestSelectionStart;
+                selectionEnd = this.latestSelectionEnd;
+                this.segment = this.openSegment(seq + 1);
+                this.checkpointSequence = seq;
+                this.checkpointPending = false;
+            }
+            previous.force(false);
+            previous.close();
+            this.durableSequence = Math.max(this.durableSequence, seq);
+        }
+        writeCheckpoint(this.directory, seq, text, selectionStart, selectionEnd);
+        for(Path old : this.segments()) {
+            if(segmentStart(old) <= seq) Files.deleteIfExists(old);
+        }
+    }
+
+    // Stops journaling the editor's edits and makes the recorded
+    // ones durable.
+    @Override
+    public void close() throws IOException {
+        synchronized(this) {
+            if(this.closed) return;
+            this.closed = true;
+            if(this.editor.journal == this) this.editor.journal = null;
+        }
+        this.background.shutdown();
+        try {
+            this.background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.commit();
+        synchronized(this) { this.segment.close(); }
+    }
+
+    private void commitQuietly() {
+        try {
+            this.commit();
+        } catch(IOException | RuntimeException e) {
+            // Rethrowing would cancel the periodic commit for good.
+            System.err.println("Journal commit failed: " + e);
+        }
+    }
+
+    private void checkpointQuietly() {
+        try {
+            this.checkpoint();
+        } catch(IOException | RuntimeException e) {
+            System.err.println("Journal checkpoint failed: " + e);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        this.buffer.flip();
+        while(this.buffer.hasRemaining()) this.segment.write(this.buffer);
+        this.buffer.clear();
+    }
+
+    private FileChannel openSegment(long firstSequence) throws IOException {
+        Path path = this.directory.resolve(String.format("%s%020d.log", SEGMENT_PREFIX, firstSequence));
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, SEGMENT_PREFIX + "*.log")) {
+            for(Path path : stream) segments.add(path);
+        }
+        segments.sort((a, b) -> Long.compare(segmentStart(a), segmentStart(b)));
+        return segments;
+    }
+
+    private static long segmentStart(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - ".log".length()));
+    }
+
+    // Applies every record after the checkpoint, stopping at the
+    // first torn or corrupt one (a crash mid-write).
+    private long replay(Editor editor) throws IOException {
+        long last = this.checkpointSequence;
+        CRC32 check = new CRC32();
+        for(Path path : this.segments()) {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+            while(data.remaining() >= 8) {
+                int length = data.getInt(), expected = data.getInt();
+                if(length < 28 || length > data.remaining()) return last;
+                check.reset();
+                check.update(data.array(), data.position(), length);
+                if((int) check.getValue() != expected) return last;
+                long seq = data.getLong();
+                int offset = data.getInt(), removed = data.getInt();
+                int selectionStart = data.getInt(), selectionEnd = data.getInt();
+                byte[] inserted = new byte[data.getInt()];
+                data.get(inserted);
+                if(seq <= last) continue;
+                if(seq != last + 1) return last;
+                editor.text = editor.text.replace(offset, offset + removed, new String(inserted, StandardCharsets.UTF_8));
+                editor.select(selectionStart, selectionEnd);
+                last = seq;
+            }
+        }
+        return last;
+    }
+
+    private static void writeCheckpoint(Path directory, long seq, Rope text, int selectionStart, int selectionEnd) throws IOException {
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(4 + 8 + 4 * 3);
+        header.putInt(CHECKPOINT_MAGIC).putLong(seq).putInt(selectionStart).putInt(selectionEnd).putInt(bytes.length).flip();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer trailer = ByteBuffer.allocate(4).putInt((int) crc.getValue());
+        trailer.flip();
+
+        // Write next to the old checkpoint and swap it in, so a
+        // crash never leaves a half-written checkpoint behind.
+        Path temporary = directory.resolve(CHECKPOINT + ".tmp");
+        try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer body = ByteBuffer.wrap(bytes);
+            while(header.hasRemaining()) channel.write(header);
+            while(body.hasRemaining()) channel.write(body);
+            while(trailer.hasRemaining()) channel.write(trailer);
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long readCheckpoint(Path checkpoint, Editor editor) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+        if(data.remaining() < 24 || data.getInt() != CHECKPOINT_MAGIC) throw new IOException("Not a checkpoint: " + checkpoint);
+        long seq = data.getLong();
+        int selectionStart = data.getInt(), selectionEnd = data.getInt();
+        byte[] bytes = new byte[data.getInt()];
+        data.get(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if(data.getInt() != (int) crc.getValue()) throw new IOException("Corrupt checkpoint: " + checkpoint);
+        editor.text = Rope.of(new String(bytes, StandardCharsets.UTF_8));
+        editor.select(selectionStart, selectionEnd);
+        return seq;
+    }
+}
+
+// Running commands on the UI thread blocks it while they work.
+// The bus takes commands from any thread and runs them in the
+// background: each editor gets a lane whose commands run one at a
+// time in submission order, while different editors' lanes run in
+// parallel on a shared pool. A lane drains whatever has queued up
+// in one go.
+//
+// Since lanes run in parallel, each editor keeps its own history;
+// undo and redo commands submitted to the bus act on it.
+class CommandBus implements AutoCloseable {
+    private static final int MAX_BATCH = 256;
+
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final ConcurrentHashMap<Editor, Lane> lanes = new ConcurrentHashMap<>();
+    private final int historyDepth;
+
+    // Runs lanes on a pool of its own, shut down by close(). Its
+    // threads are daemons, so a bus nobody closes (like the one
+    // Application creates on demand) doesn't keep the JVM alive.
+    CommandBus() {
+        this.ownedExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "command-bus");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor = this.ownedExecutor;
+        this.historyDepth = CommandHistory.DEFAULT_DEPTH;
+    }
+
+    CommandBus(Executor executor, int historyDepth) {
+        this.executor = executor;
+        this.ownedExecutor = null;
+        this.historyDepth = historyDepth;
+    }
+
+    // The future completes with the command's execute() result
+    // once it has run, or exceptionally if it threw.
+    public CompletableFuture<Boolean> submit(AbstractCommand command) {
+        Lane lane = this.lanes.computeIfAbsent(command.editor, editor -> new Lane());
+        Task task = new Task(command);
+        lane.queue.add(task);
+        lane.schedule();
+        return task.result;
+    }
+
+    public CommandHistory historyOf(Editor editor) {
+        return this.lanes.computeIfAbsent(editor, e -> new Lane()).history;
+    }
+
+    @Override
+    public void close() {
+        if(this.ownedExecutor != null) this.ownedExecutor.shutdown();
+    }
+
+    private static class Task {
+        final AbstractCommand command;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Task(AbstractCommand command) { this.command = command; }
+    }
+
+    private class Lane implements Runnable {
+        final ConcurrentLinkedQueue<Task> queue = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final CommandHistory history = new CommandHistory(historyDepth);
+
+        void schedule() {
+            if(this.scheduled.compareAndSet(false, true)) executor.execute(this);
+        }
+
+        // Only one thread at a time gets here for a given lane,
+        // so the editor and its history need no locking.
+        @Override
+        public void run() {
+            Task task;
+            for(int done = 0; done < MAX_BATCH && (task = this.queue.poll()) != null; done++) {
+                try {
+                    boolean changed = this.execute(task.command);
+                    if(changed) this.history.push(task.command);
+                    task.result.complete(changed);
+                } catch(RuntimeException e) {
+                    task.result.completeExceptionally(e);
+                }
+            }
+            this.scheduled.set(false);
+            // Commands that arrived while we were finishing up.
+            if(!this.queue.isEmpty()) this.schedule();
+        }
+
+        private boolean execute(AbstractCommand command) {
+            AbstractCommand target;
+            if(command instanceof UndoCommand) {
+                if((target = this.history.pop()) != null) target.undo();
+                return false;
+            }
+            if(command instanceof RedoCommand) {
+                if((target = this.history.popRedo()) != null) target.redo();
+                return false;
+            }
+            return command.execute();
+        }
     }
 }
 
 class Application {
-    public String clipboard;
+    // Lanes of the command bus may touch the clipboard from
+    // different threads.
+    public volatile Rope clipboard;
     public Editor[] editors;
     public Editor activeEditor;
-    public CommandHistory history;
+    public CommandHistory history = new CommandHistory();
+    public volatile CommandBus bus;
+
+    // Hand a command to the bus instead of running it here.
+    public CompletableFuture<Boolean> submitCommand(AbstractCommand command) {
+        CommandBus bus = this.bus;
+        if(bus == null) {
+            synchronized(this) {
+                if(this.bus == null) this.bus = new CommandBus();
+                bus = this.bus;
+            }
+        }
+        return bus.submit(command);
+    }
+
+    // Execute a command and check whether it has to be added to
+    // the history.
+    public void executeCommand(AbstractCommand command) {
+        if(command.execute()) this.history.push(command);
+    }
 
     public void undo() {
         AbstractCommand command = history.pop();
         if (command != null)
             command.undo();
     }
+
+    public void redo() {
+        AbstractCommand command = history.popRedo();
+        if (command != null)
+            command.redo();
+    }
 }
 
 
 public class Command {
     public static void main(String[] args) {
+        Application app = new Application();
+        Editor editor = app.activeEditor = new Editor();
+        app.editors = new Editor[] { editor };
+
+        editor.select(0, 5);
+        app.executeCommand(new CutCommand(app, editor));   // " world"
+        editor.select(6, 6);
+        app.executeCommand(new PasteCommand(app, editor)); // " worldHello"
+        System.out.println("After cut and paste: " + editor.text);
+        app.executeCommand(new UndoCommand(app, editor));
+        app.executeCommand(new UndoCommand(app, editor));
+        System.out.println("After two undos: " + editor.text);
+        app.executeCommand(new RedoCommand(app, editor));
+        System.out.println("After redo: " + editor.text);
+
+        // Edits stay cheap on a big document.
+        StringBuilder big = new StringBuilder();
+        while(big.length() < 50_000_000) big.append("All work and no play makes Jack a dull boy. ");
+        Editor large = new Editor();
+        large.text = Rope.of(big);
+        long start = System.nanoTime();
+        for(int i = 0; i < 1000; i++) {
+            int at = ThreadLocalRandom.current().nextInt(large.text.length() - 10_000_000);
+            large.select(at, at + 10_000_000);
+            app.executeCommand(new CutCommand(app, large));
+            large.select(at / 2, at / 2);
+            app.executeCommand(new PasteCommand(app, large));
+        }
+        System.out.println("1000 cuts and pastes of 10M characters in a " + large.text.length() / 1_000_000
+            + "M document: " + (System.nanoTime() - start) / 1_000_000 + "ms");
+
+        // Bursts of keystrokes on two editors go through the bus.
+        Editor left = new Editor(), right = new Editor();
+        app.editors = new Editor[] { left, right };
+        CompletableFuture<Boolean> last = null;
+        for(char c : " and goodbye".toCharArray()) {
+            app.submitCommand(new TypeCommand(app, left, String.valueOf(c)));
+            last = app.submitCommand(new TypeCommand(app, right, String.valueOf(Character.toUpperCase(c))));
+        }
+        last.join();
+        app.submitCommand(new TypeCommand(app, left, "!")).join();
+        System.out.println("\nLeft: " + left.text + " (" + app.bus.historyOf(left).size() + " history entries)");
+        System.out.println("Right: " + right.text + " (" + app.bus.historyOf(right).size() + " history entries)");
+        app.submitCommand(new UndoCommand(app, right)).join();
+        System.out.println("Right after undo: " + right.text);
+        app.bus.close();
+
+        // Edits survive a restart through the journal.
+        try {
+            Path directory = Files.createTempDirectory("editor-journal");
+            Editor journaled = new Editor();
+            CommandJournal journal = CommandJournal.open(directory, journaled, 1000, 5);
+            for(int i = 0; i < 2500; i++) app.executeCommand(new TypeCommand(app, journaled, i % 100 == 99 ? "\n" : "."));
+            app.undo();
+            journal.close();
+
+            Editor recovered = new Editor();
+            long recoveryStart = System.nanoTime();
+            CommandJournal.open(directory, recovered, 1000, 5).close();
+            System.out.println("\nRecovered " + recovered.text.length() + " characters (expected " + journaled.text.length()
+                + ") in " + (System.nanoTime() - recoveryStart) / 1_000_000 + "ms, identical: " + recovered.text.toString().equals(journaled.text.toString()));
+        } catch(IOException e) {
+            System.err.println("Journal demo failed: " + e);
+        }
+
         /* The rest of the code is the application pseudocode as it's not feasible to implement all this
         
         // The application class sets up object relations. It acts as a
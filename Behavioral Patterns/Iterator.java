@@ -1,5 +1,29 @@
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 class Profile {
     int id;
@@ -23,45 +47,241 @@ class Profile {
 // producing iterators. You can declare several methods if there
 // are different kinds of iteration available in your program.
 interface SocialNetwork {
-    public ProfileIterator createFriendsIterator(int profileId);
-    public ProfileIterator createCoworkersIterator(int profileId);
+    public ProfileIterator createIterator(int profileId, RelationType type);
+
+    public default ProfileIterator createFriendsIterator(int profileId) {
+        return this.createIterator(profileId, RelationType.FRIENDS);
+    }
+
+    public default ProfileIterator createCoworkersIterator(int profileId) {
+        return this.createIterator(profileId, RelationType.COWORKERS);
+    }
+}
+
+// The kinds of connections a network knows about. Storage is
+// indexed by the enum, so adding a kind is one more constant and
+// nothing on the iteration path compares strings.
+enum RelationType {
+    FRIENDS,
+    COWORKERS
+}
+
+// The social graph in compressed sparse row (CSR) form. Each
+// relationship type keeps two int arrays: the connections of
+// profile p are neighbors[offsets[p]] .. neighbors[offsets[p + 1] - 1],
+// sorted by id. Emails live back to back as UTF-8 in one byte
+// arena and are only decoded into Strings when a Profile is
+// actually requested. Compared with one Profile object and one
+// String per connection, this takes a fraction of the memory and
+// traversal walks plain arrays instead of chasing pointers.
+class SocialGraph {
+    static class Adjacency {
+        final int[] offsets;
+        final int[] neighbors;
+
+        Adjacency(int[] offsets, int[] neighbors) {
+            this.offsets = offsets;
+            this.neighbors = neighbors;
+        }
+
+        int degree(int profileId) {
+            return this.offsets[profileId + 1] - this.offsets[profileId];
+        }
+    }
+
+    private final int profileCount;
+    private final byte[] emailArena;
+    private final int[] emailOffsets;
+    private final EnumMap<RelationType, Adjacency> relations;
+
+    private SocialGraph(int profileCount, byte[] emailArena, int[] emailOffsets, EnumMap<RelationType, Adjacency> relations) {
+        this.profileCount = profileCount;
+        this.emailArena = emailArena;
+        this.emailOffsets = emailOffsets;
+        this.relations = relations;
+    }
+
+    public int getProfileCount() { return this.profileCount; }
+
+    public Adjacency relation(RelationType type) { return this.relations.get(type); }
+
+    public String email(int profileId) {
+        int from = this.emailOffsets[profileId];
+        return new String(this.emailArena, from, this.emailOffsets[profileId + 1] - from, StandardCharsets.UTF_8);
+    }
+
+    public Profile profile(int profileId) {
+        return new Profile(profileId, this.email(profileId));
+    }
+
+    static class Builder {
+        // Connections of one type in the order they were added,
+        // as parallel arrays of sources and targets.
+        private static final class EdgeList {
+            int[] from = new int[16], to = new int[16];
+            int size = 0;
+
+            void add(int from, int to) {
+                if(this.size == this.from.length) {
+                    this.from = Arrays.copyOf(this.from, this.size * 2);
+                    this.to = Arrays.copyOf(this.to, this.size * 2);
+                }
+                this.from[this.size] = from;
+                this.to[this.size] = to;
+                this.size++;
+            }
+        }
+
+        private byte[] arena = new byte[256];
+        private int arenaSize = 0;
+        private int[] emailOffsets = new int[16];
+        private int profileCount = 0;
+        private final EnumMap<RelationType, EdgeList> edges = new EnumMap<>(RelationType.class);
+
+        // Adds a profile and returns its id. Ids are handed out in
+        // order, starting at 0.
+        public int addProfile(String email) {
+            byte[] bytes = email.getBytes(StandardCharsets.UTF_8);
+            while(this.arenaSize + bytes.length > this.arena.length) this.arena = Arrays.copyOf(this.arena, this.arena.length * 2);
+            if(this.profileCount + 1 >= this.emailOffsets.length) this.emailOffsets = Arrays.copyOf(this.emailOffsets, this.emailOffsets.length * 2);
+            System.arraycopy(bytes, 0, this.arena, this.arenaSize, bytes.length);
+            this.arenaSize += bytes.length;
+            this.emailOffsets[++this.profileCount] = this.arenaSize;
+            return this.profileCount - 1;
+        }
+
+        // Adds a directed connection of the given type.
+        public Builder connect(RelationType type, int from, int to) {
+            if(from < 0 || from >= this.profileCount || to < 0 || to >= this.profileCount)
+                throw new IllegalArgumentException("Unknown profile in " + from + " -> " + to);
+            this.edges.computeIfAbsent(type, t -> new EdgeList()).add(from, to);
+            return this;
+        }
+
+        public SocialGraph build() {
+            EnumMap<RelationType, Adjacency> relations = new EnumMap<>(RelationType.class);
+            for(Map.Entry<RelationType, EdgeList> entry : this.edges.entrySet()) {
+                int[] from = entry.getValue().from, to = entry.getValue().to;
+                int size = entry.getValue().size;
+                // Counting sort by source profile.
+                int[] offsets = new int[this.profileCount + 1];
+                for(int i = 0; i < size; i++) offsets[from[i] + 1]++;
+                for(int p = 0; p < this.profileCount; p++) offsets[p + 1] += offsets[p];
+                int[] cursor = Arrays.copyOf(offsets, this.profileCount);
+                int[] neighbors = new int[size];
+                for(int i = 0; i < size; i++) neighbors[cursor[from[i]]++] = to[i];
+                for(int p = 0; p < this.profileCount; p++) Arrays.sort(neighbors, offsets[p], offsets[p + 1]);
+                relations.put(entry.getKey(), new Adjacency(offsets, neighbors));
+            }
+            return new SocialGraph(this.profileCount, Arrays.copyOf(this.arena, this.arenaSize),
+                Arrays.copyOf(this.emailOffsets, this.profileCount + 1), relations);
+        }
+    }
+}
+
+// One page of a social graph request: a window onto the ids in
+// the adjacency arrays, so nothing is copied. The cursor is an
+// opaque continuation token for the next page; it's null on the
+// last page.
+class ProfilePage {
+    private final int[] ids;
+    private final int from, to;
+    private final String nextCursor;
+    private final int totalSize;
+
+    ProfilePage(int[] ids, int from, int to, String nextCursor, int totalSize) {
+        this.ids = ids;
+        this.from = from;
+        this.to = to;
+        this.nextCursor = nextCursor;
+        this.totalSize = totalSize;
+    }
+
+    public int[] getIds() { return this.ids; }
+    public int getFrom() { return this.from; }
+    public int getTo() { return this.to; }
+    public String getNextCursor() { return this.nextCursor; }
+    public boolean isLast() { return this.nextCursor == null; }
+    public int getTotalSize() { return this.totalSize; }
 }
 
 // Each concrete collection is coupled to a set of concrete
 // iterator classes it returns. But the client isn't, since the
 // signature of these methods returns iterator interfaces.
 class Facebook implements SocialNetwork {
+    public static final int DEFAULT_PAGE_SIZE = 1024;
+
     // ... The bulk of the collection's code should go here ...
-    // private HashMap<Integer, String> friends = new HashMap<>();
-    // private HashMap<Integer, String> coworkers = new HashMap<>();
-    private Profile[] friends;
-    private Profile[] coworkers;
+    private final SocialGraph graph;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private Executor prefetchExecutor = ForkJoinPool.commonPool();
 
     Facebook() {
-        this.friends = new Profile[2];
-        this.friends[0] = new Profile(0, "traversy@gmail.com");
-        this.friends[1] = new Profile(1, "codewithharry@gmail.com");
+        SocialGraph.Builder builder = new SocialGraph.Builder();
+        int client = builder.addProfile("client@gmail.com");
+        builder.connect(RelationType.FRIENDS, client, builder.addProfile("traversy@gmail.com"));
+        builder.connect(RelationType.FRIENDS, client, builder.addProfile("codewithharry@gmail.com"));
+        builder.connect(RelationType.COWORKERS, client, builder.addProfile("freecodecamp@gmail.com"));
+        builder.connect(RelationType.COWORKERS, client, builder.addProfile("calebcurry@gmail.com"));
+        this.graph = builder.build();
+    }
+
+    Facebook(SocialGraph graph) {
+        this.graph = graph;
+    }
+
+    // Iterators created afterwards fetch pages of this size.
+    public Facebook setPageSize(int pageSize) {
+        if(pageSize < 1) throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+        this.pageSize = pageSize;
+        return this;
+    }
 
-        this.coworkers = new Profile[2];
-        this.coworkers[0] = new Profile(0, "freecodecamp@gmail.com");
-        this.coworkers[1] = new Profile(1, "calebcurry@gmail.com");
+    // Pages after the first one are fetched on this executor.
+    public Facebook setPrefetchExecutor(Executor prefetchExecutor) {
+        this.prefetchExecutor = prefetchExecutor;
+        return this;
     }
 
-    public Profile[] socialGraphRequest(int profileId, String type) {
-        if(type.equals("friends")) return this.friends;
-        else if(type.equals("coworkers")) return this.coworkers;
-        else return null;
+    public Profile profile(int profileId) {
+        return this.graph.profile(profileId);
+    }
+
+    // Returns up to pageSize connections starting at the cursor,
+    // or at the beginning when the cursor is null.
+    public ProfilePage socialGraphRequest(int profileId, RelationType type, String cursor, int pageSize) {
+        SocialGraph.Adjacency adjacency = this.graph.relation(type);
+        // A kind nobody has connections of yet.
+        if(adjacency == null) return new ProfilePage(new int[0], 0, 0, null, 0);
+
+        int start = adjacency.offsets[profileId], end = adjacency.offsets[profileId + 1];
+        int from = start + (cursor == null ? 0 : Integer.parseInt(cursor));
+        int to = (int) Math.min((long) from + pageSize, end);
+        return new ProfilePage(adjacency.neighbors, from, to, to < end ? Integer.toString(to - start) : null, end - start);
     }
 
     // Iterator creation code.
     @Override
-    public ProfileIterator createFriendsIterator(int profileId) {
-        return new FacebookIterator(this, profileId, "friends");
+    public ProfileIterator createIterator(int profileId, RelationType type) {
+        return new FacebookIterator(this, profileId, type, this.pageSize, this.prefetchExecutor);
     }
 
-    @Override
-    public ProfileIterator createCoworkersIterator(int profileId) {
-        return new FacebookIterator(this, profileId, "coworkers");
+    // Everyone reachable within a number of hops, e.g. friends of
+    // friends, as configured by the traversal.
+    public ProfileIterator createTraversalIterator(int profileId, RelationType type, SocialGraphTraversal traversal) {
+        int[] ids = traversal.run(this.graph, type, profileId);
+        return new IdArrayIterator(ids, this::profile);
+    }
+
+    // Connections of either kind, e.g. everyone who is a friend or
+    // a coworker, each listed once.
+    public ProfileIterator createUnionIterator(int profileId, RelationType first, RelationType second) {
+        return MergingProfileIterator.union(this.createIterator(profileId, first), this.createIterator(profileId, second), this::profile);
+    }
+
+    // Connections of both kinds, e.g. friends who are also coworkers.
+    public ProfileIterator createIntersectionIterator(int profileId, RelationType first, RelationType second) {
+        return MergingProfileIterator.intersection(this.createIterator(profileId, first), this.createIterator(profileId, second), this::profile);
     }
 }
 
@@ -69,6 +289,82 @@ class Facebook implements SocialNetwork {
 interface ProfileIterator {
     public Profile getNext();
     public boolean hasMore();
+
+    // Iterators over id-based storage can return the next id
+    // without building a Profile.
+    public default int getNextId() {
+        return this.getNext().getId();
+    }
+
+    // Streams are built on spliterators. Any iterator can be
+    // adapted as a sequential one of unknown size; iterators that
+    // know their collection can override this with something that
+    // splits for parallel work.
+    public default Spliterator<Profile> spliterator() {
+        ProfileIterator iterator = this;
+        return new Spliterators.AbstractSpliterator<Profile>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super Profile> action) {
+                if(!iterator.hasMore()) return false;
+                action.accept(iterator.getNext());
+                return true;
+            }
+        };
+    }
+
+    public default Stream<Profile> stream(boolean parallel) {
+        return StreamSupport.stream(this.spliterator(), parallel);
+    }
+}
+
+// A spliterator over a range of profile ids. Splitting hands off
+// the first half of the range, so parallel streams get evenly
+// sized chunks and exact sizes all the way down. Profiles are
+// only built for the ids actually visited.
+class ProfileSpliterator implements Spliterator<Profile> {
+    private final int[] ids;
+    private int origin;
+    private final int fence;
+    private final IntFunction<Profile> resolver;
+
+    ProfileSpliterator(int[] ids, int origin, int fence, IntFunction<Profile> resolver) {
+        this.ids = ids;
+        this.origin = origin;
+        this.fence = fence;
+        this.resolver = resolver;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Profile> action) {
+        if(this.origin >= this.fence) return false;
+        action.accept(this.resolver.apply(this.ids[this.origin++]));
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Profile> action) {
+        for(int i = this.origin; i < this.fence; i++) action.accept(this.resolver.apply(this.ids[i]));
+        this.origin = this.fence;
+    }
+
+    @Override
+    public Spliterator<Profile> trySplit() {
+        int mid = (this.origin + this.fence) >>> 1;
+        if(mid <= this.origin) return null;
+        Spliterator<Profile> prefix = new ProfileSpliterator(this.ids, this.origin, mid, this.resolver);
+        this.origin = mid;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return this.fence - this.origin;
+    }
+
+    @Override
+    public int characteristics() {
+        return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.NONNULL | Spliterator.IMMUTABLE;
+    }
 }
 
 
@@ -78,23 +374,46 @@ class FacebookIterator implements ProfileIterator {
     // traverses.
     private Facebook facebook;
     private int profileId;
-    private String type;
+    private RelationType type;
+    private int pageSize;
+    private Executor executor;
 
     // An iterator object traverses the collection independently
     // from other iterators. Therefore it has to store the
     // iteration state.
+    //
+    // The connections are fetched a page at a time. While the
+    // current page is being consumed, the next one is already on
+    // its way (double buffering), so at most two pages are held
+    // in memory and the first profile is available after a
+    // single page fetch.
     private int currentPosition = 0;
-    private Profile cache[];
+    private ProfilePage page;
+    private CompletableFuture<ProfilePage> nextPage;
+    private long consumed = 0;
 
-    FacebookIterator(Facebook facebook, int profileId, String type) {
+    FacebookIterator(Facebook facebook, int profileId, RelationType type, int pageSize, Executor executor) {
         this.facebook = facebook;
         this.profileId = profileId;
         this.type = type;
+        this.pageSize = pageSize;
+        this.executor = executor;
     }
 
     private void lazyInit() {
-        if(this.cache == null) {
-            this.cache = facebook.socialGraphRequest(profileId, type);
+        if(this.page == null) {
+            this.switchTo(facebook.socialGraphRequest(profileId, type, null, pageSize));
+        }
+    }
+
+    private void switchTo(ProfilePage page) {
+        this.page = page;
+        this.currentPosition = page.getFrom();
+        this.nextPage = null;
+        if(!page.isLast()) {
+            String cursor = page.getNextCursor();
+            this.nextPage = CompletableFuture.supplyAsync(
+                () -> facebook.socialGraphRequest(profileId, type, cursor, pageSize), executor);
         }
     }
 
@@ -103,13 +422,363 @@ class FacebookIterator implements ProfileIterator {
     public Profile getNext() {
         Profile result = null;
 
-        if(this.hasMore()) result = cache[currentPosition++];
+        if(this.hasMore()) result = facebook.profile(this.getNextId());
         return result;
     }
 
+    // Walks the ids without decoding any emails.
+    @Override
+    public int getNextId() {
+        if(!this.hasMore()) throw new NoSuchElementException();
+        consumed++;
+        return page.getIds()[currentPosition++];
+    }
+
     public boolean hasMore() {
         this.lazyInit();
-        return currentPosition < cache.length;
+        while(currentPosition >= page.getTo()) {
+            if(nextPage == null) return false;
+            this.switchTo(nextPage.join());
+        }
+        return true;
+    }
+
+    // Number of profiles this iterator hasn't handed out yet.
+    long remaining() {
+        this.lazyInit();
+        return Math.max(page.getTotalSize() - consumed, 0);
+    }
+
+    // Hands off the unread part of the current page, or half of it
+    // when it's the last page, so the rest can be processed in
+    // parallel while this iterator moves on.
+    Spliterator<Profile> splitPage() {
+        if(!this.hasMore()) return null;
+        int end = page.getTo();
+        if(page.isLast()) end = (currentPosition + end) >>> 1;
+        if(end <= currentPosition) return null;
+        Spliterator<Profile> prefix = new ProfileSpliterator(page.getIds(), currentPosition, end, facebook::profile);
+        consumed += end - currentPosition;
+        currentPosition = end;
+        return prefix;
+    }
+
+    // The spliterator takes over whatever this iterator hasn't
+    // returned yet.
+    @Override
+    public Spliterator<Profile> spliterator() {
+        FacebookIterator iterator = this;
+        return new Spliterator<Profile>() {
+            @Override
+            public boolean tryAdvance(Consumer<? super Profile> action) {
+                if(!iterator.hasMore()) return false;
+                action.accept(iterator.getNext());
+                return true;
+            }
+
+            @Override
+            public Spliterator<Profile> trySplit() {
+                return iterator.splitPage();
+            }
+
+            @Override
+            public long estimateSize() {
+                return iterator.remaining();
+            }
+
+            @Override
+            public int characteristics() {
+                return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.NONNULL;
+            }
+        };
+    }
+}
+
+
+// An iterator over a precomputed array of ids.
+class IdArrayIterator implements ProfileIterator {
+    private final int[] ids;
+    private final IntFunction<Profile> resolver;
+    private int currentPosition = 0;
+
+    IdArrayIterator(int[] ids, IntFunction<Profile> resolver) {
+        this.ids = ids;
+        this.resolver = resolver;
+    }
+
+    public Profile getNext() {
+        return this.hasMore() ? this.resolver.apply(this.getNextId()) : null;
+    }
+
+    @Override
+    public int getNextId() {
+        if(!this.hasMore()) throw new NoSuchElementException();
+        return this.ids[this.currentPosition++];
+    }
+
+    public boolean hasMore() {
+        return this.currentPosition < this.ids.length;
+    }
+
+    @Override
+    public Spliterator<Profile> spliterator() {
+        Spliterator<Profile> rest = new ProfileSpliterator(this.ids, this.currentPosition, this.ids.length, this.resolver);
+        this.currentPosition = this.ids.length;
+        return rest;
+    }
+}
+
+// Multi-hop traversal over the adjacency arrays, for audiences
+// like friends of friends. Breadth-first search expands each
+// level of the frontier in parallel on a fork/join pool; visited
+// profiles are claimed in a shared bitset (one bit per profile)
+// with compare-and-set, so every profile is reported once. The
+// start profile itself is never reported.
+//
+// Depth-first search runs on the calling thread. A profile first
+// reached over a long path may later be reached over a shorter
+// one, so DFS remembers the fewest hops per profile instead of a
+// bitset.
+class SocialGraphTraversal {
+    private int maxHops = 2;
+    private int maxResults = Integer.MAX_VALUE;
+    private boolean depthFirst = false;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private int chunkSize = 4096;
+
+    public SocialGraphTraversal setMaxHops(int maxHops) {
+        if(maxHops < 1 || maxHops > Byte.MAX_VALUE) throw new IllegalArgumentException("maxHops must be in 1.." + Byte.MAX_VALUE);
+        this.maxHops = maxHops;
+        return this;
+    }
+
+    // Stops as soon as this many profiles have been found.
+    public SocialGraphTraversal setMaxResults(int maxResults) {
+        if(maxResults < 0) throw new IllegalArgumentException("maxResults must not be negative: " + maxResults);
+        this.maxResults = maxResults;
+        return this;
+    }
+
+    public SocialGraphTraversal setDepthFirst(boolean depthFirst) {
+        this.depthFirst = depthFirst;
+        return this;
+    }
+
+    public SocialGraphTraversal setPool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    // Frontier slices at most this big are expanded by one task.
+    public SocialGraphTraversal setChunkSize(int chunkSize) {
+        if(chunkSize < 1) throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public int[] run(SocialGraph graph, RelationType type, int start) {
+        SocialGraph.Adjacency adjacency = graph.relation(type);
+        if(adjacency == null || this.maxResults == 0) return new int[0];
+        return this.depthFirst
+            ? this.depthFirst(adjacency, graph.getProfileCount(), start)
+            : this.breadthFirst(adjacency, graph.getProfileCount(), start);
+    }
+
+    private int[] breadthFirst(SocialGraph.Adjacency adjacency, int profileCount, int start) {
+        AtomicLongArray visited = new AtomicLongArray((profileCount + 63) >>> 6);
+        claim(visited, start);
+        // Results still wanted. Tasks take from it as they find
+        // profiles and stop expanding once it runs out, so a small
+        // limit doesn't pay for the whole level. Which profiles of
+        // the last level make it then depends on scheduling.
+        AtomicInteger remaining = new AtomicInteger(this.maxResults);
+        int[] frontier = { start };
+        int[] found = new int[0];
+
+        for(int hop = 0; hop < this.maxHops && frontier.length > 0 && remaining.get() > 0; hop++) {
+            frontier = this.pool.invoke(new ExpandTask(adjacency, visited, remaining, frontier, 0, frontier.length, this.chunkSize));
+            found = Arrays.copyOf(found, found.length + frontier.length);
+            System.arraycopy(frontier, 0, found, found.length - frontier.length, frontier.length);
+        }
+        return found;
+    }
+
+    private int[] depthFirst(SocialGraph.Adjacency adjacency, int profileCount, int start) {
+        byte[] hops = new byte[profileCount]; // 0 = not reached yet
+        hops[start] = -1;
+        int[] found = new int[16];
+        int count = 0;
+        // Explicit stacks of (profile, next neighbor index).
+        int[] stackProfile = new int[this.maxHops + 1], stackNext = new int[this.maxHops + 1];
+        int depth = 0;
+        stackProfile[0] = start;
+        stackNext[0] = adjacency.offsets[start];
+
+        while(depth >= 0 && count < this.maxResults) {
+            int profile = stackProfile[depth];
+            if(depth == this.maxHops || stackNext[depth] >= adjacency.offsets[profile + 1]) {
+                depth--;
+                continue;
+            }
+            int neighbor = adjacency.neighbors[stackNext[depth]++];
+            int reachedAt = depth + 1;
+            if(hops[neighbor] == -1 || (hops[neighbor] != 0 && hops[neighbor] <= reachedAt)) continue;
+            if(hops[neighbor] == 0) {
+                if(count == found.length) found = Arrays.copyOf(found, count * 2);
+                found[count++] = neighbor;
+            }
+            hops[neighbor] = (byte) reachedAt;
+            depth++;
+            stackProfile[depth] = neighbor;
+            stackNext[depth] = adjacency.offsets[neighbor];
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private static boolean claim(AtomicLongArray visited, int profileId) {
+        int word = profileId >>> 6;
+        long bit = 1L << profileId;
+        long current;
+        do {
+            current = visited.get(word);
+            if((current & bit) != 0) return false;
+        } while(!visited.compareAndSet(word, current, current | bit));
+        return true;
+    }
+
+    // Expands a slice of the frontier into the next level. Big
+    // slices are split in half and run in parallel; the halves are
+    // concatenated in order.
+    private static class ExpandTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final SocialGraph.Adjacency adjacency;
+        private final AtomicLongArray visited;
+        private final AtomicInteger remaining;
+        private final int[] frontier;
+        private final int from, to, chunkSize;
+
+        ExpandTask(SocialGraph.Adjacency adjacency, AtomicLongArray visited, AtomicInteger remaining, int[] frontier, int from, int to, int chunkSize) {
+            this.adjacency = adjacency;
+            this.visited = visited;
+            this.remaining = remaining;
+            this.frontier = frontier;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected int[] compute() {
+            if(this.remaining.get() <= 0) return new int[0];
+            if(this.to - this.from > this.chunkSize) {
+                int mid = (this.from + this.to) >>> 1;
+                ExpandTask left = new ExpandTask(this.adjacency, this.visited, this.remaining, this.frontier, this.from, mid, this.chunkSize);
+                left.fork();
+                int[] right = new ExpandTask(this.adjacency, this.visited, this.remaining, this.frontier, mid, this.to, this.chunkSize).compute();
+                int[] joined = left.join();
+                int[] result = Arrays.copyOf(joined, joined.length + right.length);
+                System.arraycopy(right, 0, result, joined.length, right.length);
+                return result;
+            }
+
+            int[] next = new int[16];
+            int count = 0;
+            expand:
+            for(int i = this.from; i < this.to; i++) {
+                int profile = this.frontier[i];
+                for(int e = this.adjacency.offsets[profile]; e < this.adjacency.offsets[profile + 1]; e++) {
+                    int neighbor = this.adjacency.neighbors[e];
+                    if(!claim(this.visited, neighbor)) continue;
+                    if(this.remaining.getAndDecrement() <= 0) break expand;
+                    if(count == next.length) next = Arrays.copyOf(next, count * 2);
+                    next[count++] = neighbor;
+                }
+            }
+            return Arrays.copyOf(next, count);
+        }
+    }
+}
+
+// Iterators can be combined, too. This one merges two iterators
+// that return ids in ascending order, as FacebookIterator does,
+// into their union or intersection in a single pass. Duplicates
+// are dropped.
+class MergingProfileIterator implements ProfileIterator {
+    private final ProfileIterator first, second;
+    private final boolean intersect;
+    private final IntFunction<Profile> resolver;
+    private int headFirst, headSecond;
+    private boolean hasFirst, hasSecond;
+    private int next, last = -1;
+    private boolean hasNext;
+
+    private MergingProfileIterator(ProfileIterator first, ProfileIterator second, boolean intersect, IntFunction<Profile> resolver) {
+        this.first = first;
+        this.second = second;
+        this.intersect = intersect;
+        this.resolver = resolver;
+        this.advanceFirst();
+        this.advanceSecond();
+        this.advance();
+    }
+
+    static ProfileIterator union(ProfileIterator first, ProfileIterator second, IntFunction<Profile> resolver) {
+        return new MergingProfileIterator(first, second, false, resolver);
+    }
+
+    static ProfileIterator intersection(ProfileIterator first, ProfileIterator second, IntFunction<Profile> resolver) {
+        return new MergingProfileIterator(first, second, true, resolver);
+    }
+
+    private void advanceFirst() {
+        this.hasFirst = this.first.hasMore();
+        if(this.hasFirst) this.headFirst = this.first.getNextId();
+    }
+
+    private void advanceSecond() {
+        this.hasSecond = this.second.hasMore();
+        if(this.hasSecond) this.headSecond = this.second.getNextId();
+    }
+
+    private void advance() {
+        this.hasNext = false;
+        while(!this.hasNext && (this.intersect ? this.hasFirst && this.hasSecond : this.hasFirst || this.hasSecond)) {
+            int candidate;
+            boolean inBoth = false;
+            if(this.hasFirst && (!this.hasSecond || this.headFirst < this.headSecond)) {
+                candidate = this.headFirst;
+                this.advanceFirst();
+            } else if(this.hasSecond && (!this.hasFirst || this.headSecond < this.headFirst)) {
+                candidate = this.headSecond;
+                this.advanceSecond();
+            } else {
+                candidate = this.headFirst;
+                inBoth = true;
+                this.advanceFirst();
+                this.advanceSecond();
+            }
+            if(candidate == this.last || (this.intersect && !inBoth)) continue;
+            this.last = candidate;
+            this.next = candidate;
+            this.hasNext = true;
+        }
+    }
+
+    public Profile getNext() {
+        return this.hasNext ? this.resolver.apply(this.getNextId()) : null;
+    }
+
+    @Override
+    public int getNextId() {
+        if(!this.hasNext) throw new NoSuchElementException();
+        int result = this.next;
+        this.advance();
+        return result;
+    }
+
+    public boolean hasMore() {
+        return this.hasNext;
     }
 }
 
@@ -128,8 +797,212 @@ class SocialSpammer {
         Profile profile;
         while(iterator.hasMore()) {
             profile = iterator.getNext();
+            this.sendMail(profile, message);
+        }
+    }
+
+    // Sends through a parallel stream. The work runs inside the
+    // given pool, which bounds how many mails go out at once.
+    public void sendParallel(ProfileIterator iterator, String message, int parallelism) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.submit(() -> iterator.stream(true).forEach(profile -> this.sendMail(profile, message))).join();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    protected void sendMail(Profile profile, String message) {
+        System.out.println("System.sendMail(" + profile.getEmail() + ", " + message + ")");
+    }
+}
+
+// Where mail actually goes. Implementations may throw to signal a
+// failed batch; the pipeline retries it.
+interface MailSender {
+    public void sendBatch(List<Profile> recipients, String message) throws Exception;
+}
+
+// A local stand-in for a real mail service.
+class ConsoleMailSender implements MailSender {
+    @Override
+    public void sendBatch(List<Profile> recipients, String message) {
+        for(Profile profile : recipients)
             System.out.println("System.sendMail(" + profile.getEmail() + ", " + message + ")");
+    }
+}
+
+// A token bucket: permits refill at a fixed rate up to a burst
+// size. A caller that asks for more than is available takes the
+// permits on credit and sleeps until the bucket has paid it back,
+// so waiting happens outside the lock.
+class TokenBucket {
+    private final double permitsPerNano;
+    private final double burst;
+    private double available;
+    private long lastRefill = System.nanoTime();
+
+    TokenBucket(double permitsPerSecond, int burst) {
+        if(permitsPerSecond <= 0 || burst < 1) throw new IllegalArgumentException("rate and burst must be positive");
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.available = burst;
+    }
+
+    public void acquire(int permits) throws InterruptedException {
+        long waitNanos;
+        synchronized(this) {
+            long now = System.nanoTime();
+            this.available = Math.min(this.burst, this.available + (now - this.lastRefill) * this.permitsPerNano);
+            this.lastRefill = now;
+            this.available -= permits;
+            waitNanos = this.available >= 0 ? 0 : (long) (-this.available / this.permitsPerNano);
         }
+        if(waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+}
+
+// Sending mail one profile at a time on the caller's thread
+// doesn't scale. The pipeline reads the iterator, groups
+// recipients into batches and hands each batch to an executor.
+// A token bucket limits the send rate, failed batches are retried
+// with exponential backoff, and a semaphore caps the number of
+// batches in flight so a huge iterator isn't buffered in memory.
+class MailPipeline {
+    private final MailSender sender;
+    private final ExecutorService executor;
+    private final int batchSize;
+    private final int maxInFlight;
+    private final TokenBucket rateLimit;
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+
+    MailPipeline(MailSender sender, ExecutorService executor, int batchSize, int maxInFlight,
+                 TokenBucket rateLimit, int maxRetries, long initialBackoffMillis) {
+        if(batchSize < 1 || maxInFlight < 1) throw new IllegalArgumentException("batchSize and maxInFlight must be positive");
+        if(maxRetries < 0 || initialBackoffMillis < 0) throw new IllegalArgumentException("maxRetries and initialBackoffMillis must not be negative");
+        this.sender = sender;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+        this.rateLimit = rateLimit;
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    // Virtual threads make blocking senders cheap. They are only
+    // available on newer JDKs, so fall back to a bounded pool of
+    // platform threads elsewhere.
+    public static ExecutorService defaultExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors() * 4));
+        }
+    }
+
+    // Sends the message to everyone the iterator returns and waits
+    // until every batch has been delivered or given up on.
+    public DispatchReport send(ProfileIterator iterator, String message) throws InterruptedException {
+        DispatchReport report = new DispatchReport();
+        Semaphore inFlight = new Semaphore(this.maxInFlight);
+        long start = System.nanoTime();
+
+        ArrayList<Profile> batch = new ArrayList<>(this.batchSize);
+        while(iterator.hasMore()) {
+            batch.add(iterator.getNext());
+            if(batch.size() == this.batchSize || !iterator.hasMore()) {
+                List<Profile> recipients = batch;
+                batch = new ArrayList<>(this.batchSize);
+                inFlight.acquire();
+                try {
+                    this.executor.execute(() -> {
+                        try {
+                            this.deliver(recipients, message, report);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                } catch(RuntimeException e) {
+                    inFlight.release();
+                    throw e;
+                }
+            }
+        }
+        // Once all permits are back, every batch is done.
+        inFlight.acquire(this.maxInFlight);
+        inFlight.release(this.maxInFlight);
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    private void deliver(List<Profile> recipients, String message, DispatchReport report) {
+        long backoff = this.initialBackoffMillis;
+        for(int attempt = 0; ; attempt++) {
+            long start = System.nanoTime();
+            try {
+                if(this.rateLimit != null) this.rateLimit.acquire(recipients.size());
+                this.sender.sendBatch(recipients, message);
+                report.recordBatch(recipients.size(), System.nanoTime() - start);
+                return;
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                report.failed.addAndGet(recipients.size());
+                return;
+            } catch(Exception e) {
+                if(attempt >= this.maxRetries) {
+                    report.failed.addAndGet(recipients.size());
+                    return;
+                }
+                report.retries.incrementAndGet();
+                try {
+                    Thread.sleep(backoff);
+                } catch(InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    report.failed.addAndGet(recipients.size());
+                    return;
+                }
+                // Doubling must not overflow into a negative sleep.
+                backoff = backoff > Long.MAX_VALUE / 2 ? Long.MAX_VALUE : backoff * 2;
+            }
+        }
+    }
+}
+
+// Throughput and latency figures for one MailPipeline.send call.
+class DispatchReport {
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    final AtomicLong retries = new AtomicLong();
+    final AtomicLong batches = new AtomicLong();
+    final AtomicLong totalBatchNanos = new AtomicLong();
+    final AtomicLong maxBatchNanos = new AtomicLong();
+    volatile long elapsedNanos;
+
+    void recordBatch(int size, long nanos) {
+        this.sent.addAndGet(size);
+        this.batches.incrementAndGet();
+        this.totalBatchNanos.addAndGet(nanos);
+        this.maxBatchNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getSent() { return this.sent.get(); }
+    public long getFailed() { return this.failed.get(); }
+    public long getRetries() { return this.retries.get(); }
+
+    public double getThroughputPerSecond() {
+        return this.elapsedNanos == 0 ? 0 : this.sent.get() * 1e9 / this.elapsedNanos;
+    }
+
+    public double getMeanBatchLatencyMillis() {
+        long count = this.batches.get();
+        return count == 0 ? 0 : this.totalBatchNanos.get() / 1e6 / count;
+    }
+
+    public String toString() {
+        return String.format("DispatchReport(sent=%d, failed=%d, retries=%d, batches=%d, throughput=%.0f/s, mean-batch=%.2fms, max-batch=%.2fms)",
+            this.sent.get(), this.failed.get(), this.retries.get(), this.batches.get(),
+            this.getThroughputPerSecond(), this.getMeanBatchLatencyMillis(), this.maxBatchNanos.get() / 1e6);
     }
 }
 
@@ -138,6 +1011,7 @@ class SocialSpammer {
 class Application {
     SocialNetwork network;
     SocialSpammer spammer;
+    MailPipeline pipeline;
 
     public void config() {
         // if working with Facebook
@@ -148,14 +1022,32 @@ class Application {
         this.spammer = new SocialSpammer();
     }
 
+    // Large audiences can go through the batched pipeline instead
+    // of the spammer.
+    public void configPipeline(MailPipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
     public void sendSpamToFriends(Profile profile) {
         ProfileIterator iterator = this.network.createFriendsIterator(0);
-        this.spammer.send(iterator, "My Friend, I got a special deal for ya!");
+        this.send(iterator, "My Friend, I got a special deal for ya!");
     }
 
     public void sendSpamToCoworkers(Profile profile) {
         ProfileIterator iterator = this.network.createCoworkersIterator(0);
-        this.spammer.send(iterator, "I thought this might help you!");
+        this.send(iterator, "I thought this might help you!");
+    }
+
+    private void send(ProfileIterator iterator, String message) {
+        if(this.pipeline == null) {
+            this.spammer.send(iterator, message);
+            return;
+        }
+        try {
+            System.out.println(this.pipeline.send(iterator, message));
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
 
@@ -166,5 +1058,65 @@ public class Iterator {
         app.config();
         app.sendSpamToCoworkers(new Profile(0, "client@gmail.com"));
         app.sendSpamToCoworkers(new Profile(1, "client@gmail.com"));
+
+        // The same iterator can feed a parallel stream.
+        app.spammer.sendParallel(app.network.createFriendsIterator(0), "Parallel hello!", 2);
+
+        // Small pages show the iterator walking page by page.
+        Facebook paged = new Facebook().setPageSize(1);
+        app.spammer.send(paged.createFriendsIterator(0), "One page at a time");
+
+        // A bigger, generated network walked by id only.
+        int profiles = 100_000, degree = 50;
+        Random random = new Random(42);
+        SocialGraph.Builder builder = new SocialGraph.Builder();
+        for(int id = 0; id < profiles; id++) builder.addProfile("user" + id + "@example.com");
+        for(int id = 0; id < profiles; id++)
+            for(int k = 0; k < degree; k++) builder.connect(RelationType.FRIENDS, id, random.nextInt(profiles));
+        Facebook large = new Facebook(builder.build());
+
+        long start = System.nanoTime(), checksum = 0, visited = 0;
+        for(int id = 0; id < profiles; id++) {
+            ProfileIterator iterator = large.createFriendsIterator(id);
+            while(iterator.hasMore()) {
+                checksum += iterator.getNextId();
+                visited++;
+            }
+        }
+        System.out.println("\nWalked " + visited + " connections by id in " + (System.nanoTime() - start) / 1_000_000 + "ms (checksum " + checksum + ")");
+        System.out.println("Parallel stream count for profile 0: " + large.createFriendsIterator(0).stream(true).count());
+
+        // Friends of friends, found by a parallel breadth-first search.
+        start = System.nanoTime();
+        ProfileIterator audience = large.createTraversalIterator(0, RelationType.FRIENDS, new SocialGraphTraversal().setMaxHops(3));
+        System.out.println("Three-hop audience of profile 0: " + audience.stream(false).count() + " profiles in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+
+        // Relationship kinds can be combined.
+        SocialGraph.Builder office = new SocialGraph.Builder();
+        int me = office.addProfile("me@example.com");
+        int alice = office.addProfile("alice@example.com"), bob = office.addProfile("bob@example.com"), carol = office.addProfile("carol@example.com");
+        office.connect(RelationType.FRIENDS, me, alice).connect(RelationType.FRIENDS, me, bob);
+        office.connect(RelationType.COWORKERS, me, bob).connect(RelationType.COWORKERS, me, carol);
+        Facebook work = new Facebook(office.build());
+        app.spammer.send(work.createIntersectionIterator(me, RelationType.FRIENDS, RelationType.COWORKERS), "Friend and coworker");
+        app.spammer.send(work.createUnionIterator(me, RelationType.FRIENDS, RelationType.COWORKERS), "Friend or coworker");
+
+        // The pipeline sends in batches and reports how it went.
+        ExecutorService executor = MailPipeline.defaultExecutor();
+        app.configPipeline(new MailPipeline(new ConsoleMailSender(), executor, 2, 4, new TokenBucket(100, 10), 3, 10));
+        app.sendSpamToFriends(new Profile(0, "client@gmail.com"));
+
+        AtomicLong delivered = new AtomicLong();
+        MailPipeline fast = new MailPipeline((recipients, message) -> delivered.addAndGet(recipients.size()),
+            executor, 500, 64, new TokenBucket(5_000_000, 100_000), 3, 10);
+        SocialGraph.Builder star = new SocialGraph.Builder();
+        int hub = star.addProfile("hub@example.com");
+        for(int id = 1; id <= 1_000_000; id++) star.connect(RelationType.FRIENDS, hub, star.addProfile("fan" + id + "@example.com"));
+        try {
+            System.out.println(fast.send(new Facebook(star.build()).createFriendsIterator(hub), "Hello fans!"));
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdown();
     }
 }
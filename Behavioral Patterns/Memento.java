@@ -1,60 +1,510 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// An immutable text: a randomized balanced tree of text chunks.
+// An edit rebuilds only the O(log n) nodes on one path and shares
+// everything else with the previous version, so many versions of
+// a large document cost little more than one.
+//
+// This is Rope from Command.java cut down to what snapshots need:
+// replace() for the editor's inserts and deletes, length() and
+// toString(). There is no module to share it through, so a fix to
+// build, split or merge here belongs in Rope as well, and the
+// other way round.
+final class PersistentText {
+    private static final int CHUNK = 512;
+    static final PersistentText EMPTY = new PersistentText(null);
+
+    private static final class Node {
+        final Node left, right;
+        final String chunk;
+        final int length; // characters in this subtree
+        final int count;  // nodes in this subtree
+
+        Node(Node left, String chunk, Node right) {
+            this.left = left;
+            this.chunk = chunk;
+            this.right = right;
+            this.length = length(left) + chunk.length() + length(right);
+            this.count = count(left) + 1 + count(right);
+        }
+    }
+
+    private final Node root;
+
+    private PersistentText(Node root) {
+        this.root = root;
+    }
+
+    static PersistentText of(String text) {
+        if(text == null || text.isEmpty()) return EMPTY;
+        return new PersistentText(build(text, 0, (text.length() + CHUNK - 1) / CHUNK));
+    }
+
+    private static Node build(String text, int from, int to) {
+        if(from >= to) return null;
+        int mid = (from + to) >>> 1;
+        String chunk = text.substring(mid * CHUNK, Math.min((mid + 1) * CHUNK, text.length()));
+        return new Node(build(text, from, mid), chunk, build(text, mid + 1, to));
+    }
+
+    private static int length(Node node) { return node == null ? 0 : node.length; }
+    private static int count(Node node) { return node == null ? 0 : node.count; }
+
+    // Picking the root with probability proportional to subtree
+    // size keeps the tree balanced in expectation.
+    private static Node merge(Node a, Node b) {
+        if(a == null) return b;
+        if(b == null) return a;
+        if(ThreadLocalRandom.current().nextInt(a.count + b.count) < a.count)
+            return new Node(a.left, a.chunk, merge(a.right, b));
+        return new Node(merge(a, b.left), b.chunk, b.right);
+    }
+
+    private static Node leaf(String chunk) {
+        return chunk.isEmpty() ? null : new Node(null, chunk, null);
+    }
+
+    private static Node[] split(Node node, int at) {
+        if(node == null) return new Node[] { null, null };
+        int leftLength = length(node.left);
+        if(at <= leftLength) {
+            Node[] parts = split(node.left, at);
+            return new Node[] { parts[0], new Node(parts[1], node.chunk, node.right) };
+        }
+        int chunkEnd = leftLength + node.chunk.length();
+        if(at >= chunkEnd) {
+            Node[] parts = split(node.right, at - chunkEnd);
+            return new Node[] { new Node(node.left, node.chunk, parts[0]), parts[1] };
+        }
+        int cut = at - leftLength;
+        return new Node[] {
+            merge(node.left, leaf(node.chunk.substring(0, cut))),
+            merge(leaf(node.chunk.substring(cut)), node.right)
+        };
+    }
+
+    public int length() {
+        return length(this.root);
+    }
+
+    // Returns a new version with [start, end) replaced by the text.
+    public PersistentText replace(int start, int end, String text) {
+        if(start < 0 || end < start || end > this.length())
+            throw new IndexOutOfBoundsException("Range " + start + ".." + end + " outside 0.." + this.length());
+        Node[] head = split(this.root, start);
+        Node[] tail = split(head[1], end - start);
+        return new PersistentText(merge(merge(head[0], PersistentText.of(text).root), tail[1]));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(this.length());
+        append(this.root, builder);
+        return builder.toString();
+    }
+
+    private static void append(Node node, StringBuilder builder) {
+        while(node != null) {
+            append(node.left, builder);
+            builder.append(node.chunk);
+            node = node.right;
+        }
+    }
+}
+
+// Everything the editor shows, as one immutable value. Changing
+// any part makes a new state that shares the rest.
+final class EditorState {
+    static final EditorState EMPTY = new EditorState(PersistentText.EMPTY, 0, 0, 0);
+
+    final PersistentText text;
+    final int curX, curY, selectionWidth;
+
+    EditorState(PersistentText text, int curX, int curY, int selectionWidth) {
+        this.text = text;
+        this.curX = curX;
+        this.curY = curY;
+        this.selectionWidth = selectionWidth;
+    }
+
+    EditorState withText(PersistentText text) { return new EditorState(text, this.curX, this.curY, this.selectionWidth); }
+    EditorState withCursor(int curX, int curY) { return new EditorState(this.text, curX, curY, this.selectionWidth); }
+    EditorState withSelectionWidth(int selectionWidth) { return new EditorState(this.text, this.curX, this.curY, selectionWidth); }
+}
 
 // The originator holds some important data that may change over
 // time. It also defines a method for saving its state inside a
 // memento and another method for restoring the state from it.
 class Editor {
-    private String text;
-    private int curX, curY, selectionWidth;
+    // The whole state is one immutable value, so the editor only
+    // ever swaps this reference.
+    private EditorState state = EditorState.EMPTY;
 
     public Editor setText(String text) {
-        this.text = text;
+        this.state = this.state.withText(PersistentText.of(text));
+        return this;
+    }
+
+    // Small edits share the unchanged parts of the text with
+    // earlier states, including the ones held by snapshots.
+    public Editor insert(int offset, String text) {
+        this.state = this.state.withText(this.state.text.replace(offset, offset, text));
+        return this;
+    }
+
+    public Editor delete(int offset, int length) {
+        this.state = this.state.withText(this.state.text.replace(offset, offset + length, ""));
         return this;
     }
 
     public Editor setCursor(int curX, int curY) {
-        this.curX = curX;
-        this.curY = curY;
+        this.state = this.state.withCursor(curX, curY);
         return this;
     }
 
     public Editor setSelectionWidth(int selectionWidth) {
-        this.selectionWidth = selectionWidth;
+        this.state = this.state.withSelectionWidth(selectionWidth);
         return this;
     }
 
+    // Only the memento should put a state back.
+    void setState(EditorState state) {
+        this.state = state;
+    }
+
+    public int length() {
+        return this.state.text.length();
+    }
+
     public String toString() {
-        return "Editor(text='" + this.text + "', cursor='" + this.curX + ", " + this.curY + "', selection-width='" + this.selectionWidth + "')";
+        return "Editor(text='" + this.state.text + "', cursor='" + this.state.curX + ", " + this.state.curY + "', selection-width='" + this.state.selectionWidth + "')";
     }
 
     // Saves the current state inside a memento.
     public Snapshot createSnapshot() {
-        // Memento is an immutable object; that's why the
-        // originator passes its state to the memento's
-        // constructor parameters.
-        return new Snapshot(this, this.text, this.curX, this.curY, this.selectionWidth);
+        // Memento is an immutable object; since the state already
+        // is one, the memento just keeps a reference to it. That's
+        // O(1) however large the document is.
+        return new Snapshot(this, this.state);
+    }
+
+    // Same, but the memento is also encoded and compressed on the
+    // executor, off the editing thread. With releaseState the
+    // memento then lets go of the live state and keeps only the
+    // compressed bytes.
+    public Snapshot createSnapshotAsync(Executor executor, boolean releaseState) {
+        Snapshot snapshot = new Snapshot(this, this.state);
+        snapshot.compressAsync(executor, releaseState);
+        return snapshot;
     }
 }
 
 // The memento class stores the past state of the editor.
 class Snapshot {
     private Editor editor; // This originator's reference is used to reflect changes
-    private String text;
-    private int curX, curY, selectionWidth;
+    private volatile EditorState state;
+    // Set when the memento is being compressed in the background.
+    private CompletableFuture<byte[]> compressed;
 
-    Snapshot(Editor editor, String text, int curX, int curY, int selectionWidth) {
+    Snapshot(Editor editor, EditorState state) {
         this.editor = editor;
-        this.text = text;
-        this.curX = curX;
-        this.curY = curY;
-        this.selectionWidth = selectionWidth;
+        this.state = state;
+    }
+
+    void compressAsync(Executor executor, boolean releaseState) {
+        EditorState frozen = this.state;
+        this.compressed = CompletableFuture.supplyAsync(() -> encode(frozen), executor);
+        if(releaseState) this.compressed.thenRun(() -> this.state = null);
     }
 
     // At some point, a previous state of the editor can be
-    // restored using a memento object.
+    // restored using a memento object. If the state was handed
+    // off to compression and released, this waits for the bytes
+    // and decodes them.
     public void restore() {
-        this.editor.setText(this.text);
-        this.editor.setCursor(this.curX, this.curY);
-        this.editor.setSelectionWidth(this.selectionWidth);
+        EditorState state = this.state;
+        if(state == null) state = decode(this.compressed.join());
+        this.editor.setState(state);
+    }
+
+    public boolean isCompressed() {
+        return this.compressed != null && this.compressed.isDone();
+    }
+
+    // A caretaker may keep a memento in compressed form. The
+    // memento still decides what goes into those bytes; to
+    // everyone else they are opaque.
+    public byte[] compress() {
+        if(this.compressed != null) return this.compressed.join();
+        return encode(this.state);
+    }
+
+    private static byte[] encode(EditorState state) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED)))) {
+            byte[] text = state.text.toString().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(state.curX);
+            out.writeInt(state.curY);
+            out.writeInt(state.selectionWidth);
+            out.writeInt(text.length);
+            out.write(text);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Snapshot decompress(Editor editor, byte[] compressed) {
+        return new Snapshot(editor, decode(compressed));
+    }
+
+    private static EditorState decode(byte[] compressed) {
+        try(DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed)))) {
+            int curX = in.readInt(), curY = in.readInt(), selectionWidth = in.readInt();
+            byte[] text = new byte[in.readInt()];
+            in.readFully(text);
+            return new EditorState(PersistentText.of(new String(text, StandardCharsets.UTF_8)), curX, curY, selectionWidth);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+// A caretaker for many snapshots, kept in three tiers. The most
+// recent ones stay as they are; they share structure, so they are
+// cheap. Older ones are compressed and kept in memory up to a byte
+// budget, and beyond that the oldest are written to files in a
+// spill directory. Snapshots are numbered in the order they were
+// saved and any of them can be restored; only the newest is
+// guaranteed to be O(1).
+class SnapshotCaretaker implements AutoCloseable {
+    private final Editor editor;
+    private final int hotCapacity;
+    private final long warmBudgetBytes;
+    private final Path spillDirectory;
+    private Executor compressor;
+
+    // Oldest first. Tiers hold consecutive numbers:
+    // cold [first, warmStart), warm [warmStart, hotStart), hot [hotStart, next).
+    private final ArrayDeque<Snapshot> hot = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> warm = new ArrayDeque<>();
+    private long warmBytes = 0;
+    private long first = 0, warmStart = 0, hotStart = 0, next = 0;
+
+    SnapshotCaretaker(Editor editor, int hotCapacity, long warmBudgetBytes, Path spillDirectory) throws IOException {
+        if(hotCapacity < 1) throw new IllegalArgumentException("hotCapacity must be positive: " + hotCapacity);
+        this.editor = editor;
+        this.hotCapacity = hotCapacity;
+        this.warmBudgetBytes = warmBudgetBytes;
+        this.spillDirectory = Files.createDirectories(spillDirectory);
+    }
+
+    // With a compressor, snapshots are compressed in the background
+    // as soon as they're taken, so moving them to the compressed
+    // tier later costs the editing thread nothing.
+    public SnapshotCaretaker setCompressor(Executor compressor) {
+        this.compressor = compressor;
+        return this;
+    }
+
+    // Takes a snapshot of the editor and returns its number.
+    public long save() {
+        Snapshot snapshot = this.compressor == null
+            ? this.editor.createSnapshot()
+            : this.editor.createSnapshotAsync(this.compressor, false);
+        return this.push(snapshot);
+    }
+
+    public long push(Snapshot snapshot) {
+        this.hot.addLast(snapshot);
+        while(this.hot.size() > this.hotCapacity) {
+            byte[] compressed = this.hot.removeFirst().compress();
+            this.warm.addLast(compressed);
+            this.warmBytes += compressed.length;
+            this.hotStart++;
+        }
+        while(this.warmBytes > this.warmBudgetBytes && !this.warm.isEmpty()) {
+            byte[] compressed = this.warm.removeFirst();
+            this.warmBytes -= compressed.length;
+            try {
+                Files.write(this.spillFile(this.warmStart), compressed);
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.warmStart++;
+        }
+        return this.next++;
+    }
+
+    // The newest snapshot is always in the hot tier, if there is
+    // one at all.
+    public Snapshot latest() {
+        return this.hot.peekLast();
+    }
+
+    // Removes and returns the newest snapshot, for undo. When that
+    // empties the hot tier, the next older snapshot is decoded
+    // back into it from the compressed tier or from disk, so each
+    // pop decodes at most one.
+    public Snapshot pop() {
+        Snapshot snapshot = this.hot.pollLast();
+        if(snapshot == null) return null;
+        this.next--;
+        if(this.hot.isEmpty() && this.next > this.first) {
+            byte[] compressed;
+            if(!this.warm.isEmpty()) {
+                compressed = this.warm.removeLast();
+                this.warmBytes -= compressed.length;
+            } else {
+                try {
+                    compressed = Files.readAllBytes(this.spillFile(this.next - 1));
+                } catch(IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                this.deleteSpillFile(this.next - 1);
+                this.warmStart--;
+            }
+            this.hot.addFirst(Snapshot.decompress(this.editor, compressed));
+            this.hotStart--;
+        }
+        return snapshot;
+    }
+
+    public Snapshot get(long number) {
+        if(number < this.first || number >= this.next) throw new IndexOutOfBoundsException("No snapshot " + number);
+        if(number >= this.hotStart) return nth(this.hot, number - this.hotStart);
+        if(number >= this.warmStart) return Snapshot.decompress(this.editor, nth(this.warm, number - this.warmStart));
+        try {
+            return Snapshot.decompress(this.editor, Files.readAllBytes(this.spillFile(number)));
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public int size() { return (int) (this.next - this.first); }
+    public int inMemory() { return this.hot.size(); }
+    public int compressed() { return this.warm.size(); }
+    public long compressedBytes() { return this.warmBytes; }
+    public int spilled() { return (int) (this.warmStart - this.first); }
+
+    // Drops the spill files.
+    @Override
+    public void close() {
+        for(long number = this.first; number < this.warmStart; number++) this.deleteSpillFile(number);
+        this.first = this.warmStart;
+    }
+
+    private static <T> T nth(ArrayDeque<T> deque, long index) {
+        Iterator<T> iterator = deque.iterator();
+        for(long i = 0; i < index; i++) iterator.next();
+        return iterator.next();
+    }
+
+    private Path spillFile(long number) {
+        return this.spillDirectory.resolve("snapshot-" + number + ".bin");
+    }
+
+    private void deleteSpillFile(long number) {
+        try {
+            Files.deleteIfExists(this.spillFile(number));
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+// The way snapshots worked before: the editor state is a plain
+// String plus fields, so every edit makes a full copy of the text
+// and every snapshot taken after an edit keeps a copy alive. Kept
+// for the benchmark below.
+class CopyingEditor {
+    private String text = "";
+    private int curX, curY, selectionWidth;
+
+    public CopyingEditor setText(String text) {
+        this.text = text;
+        return this;
+    }
+
+    public CopyingEditor insert(int offset, String text) {
+        this.text = this.text.substring(0, offset) + text + this.text.substring(offset);
+        return this;
+    }
+
+    public Object[] createSnapshot() {
+        return new Object[] { this.text, this.curX, this.curY, this.selectionWidth };
+    }
+}
+
+// Takes many snapshots of a large document with a small edit
+// every few snapshots, and measures the heap the snapshots keep
+// alive with each approach. The copying approach needs a full
+// document per edit, so it's measured on a prefix of the run and
+// extrapolated.
+class SnapshotBenchmark {
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static void run(int documentSize, int snapshots, int editEvery) {
+        StringBuilder builder = new StringBuilder(documentSize);
+        while(builder.length() < documentSize) builder.append("Lorem ipsum dolor sit amet. ");
+        String document = builder.substring(0, documentSize);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        Editor editor = new Editor().setText(document);
+        Snapshot[] kept = new Snapshot[snapshots];
+        long before = usedHeap();
+        long start = System.nanoTime();
+        for(int i = 0; i < snapshots; i++) {
+            if(i % editEvery == 0) editor.insert(random.nextInt(editor.length() + 1), "x");
+            kept[i] = editor.createSnapshot();
+        }
+        long elapsed = System.nanoTime() - start;
+        long persistent = usedHeap() - before;
+        Reference.reachabilityFence(kept);
+        System.out.printf("Persistent state: %,d snapshots in %d ms, %,d KB retained%n",
+            snapshots, elapsed / 1_000_000, persistent / 1024);
+        kept = null;
+        editor = null;
+
+        int sample = Math.min(snapshots, 200 * editEvery);
+        CopyingEditor copying = new CopyingEditor().setText(document);
+        Object[][] copies = new Object[sample][];
+        before = usedHeap();
+        start = System.nanoTime();
+        for(int i = 0; i < sample; i++) {
+            if(i % editEvery == 0) copying.insert(random.nextInt(documentSize), "x");
+            copies[i] = copying.createSnapshot();
+        }
+        elapsed = System.nanoTime() - start;
+        long copied = usedHeap() - before;
+        Reference.reachabilityFence(copies);
+        double scale = (double) snapshots / sample;
+        System.out.printf("Copying state:    %,d snapshots in %d ms, %,d KB retained (%,.0f KB extrapolated to %,d)%n",
+            sample, elapsed / 1_000_000, copied / 1024, copied * scale / 1024, snapshots);
     }
 }
 
@@ -62,20 +512,41 @@ class Snapshot {
 // command gets a memento just before it changes the
 // originator's state. When undo is requested, it restores the
 // originator's state from a memento.
+//
+// Commands that share a caretaker hand their mementos to it
+// instead, so undo can go back any number of steps.
+//
+// With an executor, the backup is compressed in the background
+// and only the compressed copy is kept.
 class Command {
     private Snapshot backup;
     private Editor editor;
+    private SnapshotCaretaker caretaker;
+    private Executor executor;
 
     Command(Editor editor) {
         this.editor = editor;
     }
 
+    Command(Editor editor, SnapshotCaretaker caretaker) {
+        this.editor = editor;
+        this.caretaker = caretaker;
+    }
+
+    Command(Editor editor, Executor executor) {
+        this.editor = editor;
+        this.executor = executor;
+    }
+
     public void makeBackup() {
-        this.backup = this.editor.createSnapshot();
+        if(this.caretaker != null) this.caretaker.save();
+        else if(this.executor != null) this.backup = this.editor.createSnapshotAsync(this.executor, true);
+        else this.backup = this.editor.createSnapshot();
     }
 
     public void undo() {
-        if(this.backup != null) this.backup.restore();
+        Snapshot snapshot = this.caretaker != null ? this.caretaker.pop() : this.backup;
+        if(snapshot != null) snapshot.restore();
     }
 }
 
@@ -102,5 +573,57 @@ public class Memento {
         command.undo();
 
         System.out.println("\nCurrent Editor State" + editor);
+
+        // A caretaker keeps many snapshots within a memory budget.
+        try(SnapshotCaretaker caretaker = new SnapshotCaretaker(editor, 8, 2048, Files.createTempDirectory("snapshots"))) {
+            for(int i = 0; i < 100; i++) {
+                editor.insert(editor.length(), " " + i);
+                caretaker.save();
+            }
+            System.out.println("\n" + caretaker.size() + " snapshots: " + caretaker.inMemory() + " in memory, "
+                + caretaker.compressed() + " compressed (" + caretaker.compressedBytes() + " bytes), " + caretaker.spilled() + " on disk");
+            caretaker.get(3).restore();
+            System.out.println("Restored snapshot 3 from disk: " + editor);
+            Command edit = new Command(editor, caretaker);
+            edit.makeBackup();
+            editor.setText("Overwritten");
+            System.out.println("Overwritten: " + editor);
+            edit.undo();
+            System.out.println("After undo: " + editor);
+        } catch(IOException e) {
+            System.err.println("Caretaker demo failed: " + e);
+        }
+
+        // Backups of a large document are compressed in the
+        // background while editing goes on.
+        ThreadPoolExecutor background = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        background.prestartAllCoreThreads();
+        Editor large = new Editor().setText("All work and no play makes Jack a dull boy. ".repeat(200_000));
+        Command backup = new Command(large, background);
+        new Editor().createSnapshotAsync(background, true); // class loading shouldn't count
+        long start = System.nanoTime();
+        backup.makeBackup();
+        long captured = System.nanoTime() - start;
+        start = System.nanoTime();
+        for(int i = 0; i < 1000; i++) large.insert(i * 10, "!");
+        long edited = System.nanoTime() - start;
+        background.shutdown();
+        try {
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        start = System.nanoTime();
+        backup.undo();
+        System.out.println("\nBackup of " + large.length() + " characters captured in " + captured / 1000
+            + "us, 1000 edits meanwhile took " + edited / 1_000_000 + "ms, restore from compressed copy took "
+            + (System.nanoTime() - start) / 1_000_000 + "ms");
+
+        // Pass "bench" to compare snapshot memory with the copying
+        // approach.
+        if(args.length > 0 && args[0].equals("bench")) {
+            int snapshots = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+            SnapshotBenchmark.run(1_000_000, snapshots, 100);
+        }
     }
 }
@@ -1,18 +1,145 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
-// The AudioPlayer class acts as a context. It also maintains a
-// reference to an instance of one of the state classes that
-// represents the current state of the audio player.
+// A generic state machine engine. The transitions are declared
+// as (state, event) -> action + next state, and compiled into two
+// dense int tables indexed by the ordinals of the state and the
+// event. Firing an event is then two array lookups and possibly
+// one action call. The machine itself is immutable and shared;
+// all a session has to keep is its current state, as an int.
+// Pairs that weren't declared keep the state and do nothing.
+final class StateMachine<S extends Enum<S>, E extends Enum<E>, C> {
+    interface Action<C> {
+        void run(C context);
+    }
+
+    private final S[] states;
+    private final int[][] next;    // [state][event] -> next state
+    private final int[][] action;  // [state][event] -> index into actions, or -1
+    private final Action<C>[] actions;
+
+    private StateMachine(S[] states, int[][] next, int[][] action, Action<C>[] actions) {
+        this.states = states;
+        this.next = next;
+        this.action = action;
+        this.actions = actions;
+    }
+
+    // Runs the action for the event and returns the next state.
+    public int fire(C context, int state, int event) {
+        int index = this.action[state][event];
+        if(index >= 0) this.actions[index].run(context);
+        return this.next[state][event];
+    }
+
+    public int fire(C context, int state, E event) {
+        return this.fire(context, state, event.ordinal());
+    }
+
+    public S stateOf(int state) {
+        return this.states[state];
+    }
+
+    static <S extends Enum<S>, E extends Enum<E>, C> Builder<S, E, C> builder(Class<S> stateType, Class<E> eventType) {
+        return new Builder<>(stateType, eventType);
+    }
+
+    static final class Builder<S extends Enum<S>, E extends Enum<E>, C> {
+        private final S[] states;
+        private final int[][] next;
+        private final int[][] action;
+        private final ArrayList<Action<C>> actions = new ArrayList<>();
+
+        private Builder(Class<S> stateType, Class<E> eventType) {
+            this.states = stateType.getEnumConstants();
+            int events = eventType.getEnumConstants().length;
+            this.next = new int[this.states.length][events];
+            this.action = new int[this.states.length][events];
+            for(int state = 0; state < this.states.length; state++) {
+                Arrays.fill(this.next[state], state);
+                Arrays.fill(this.action[state], -1);
+            }
+        }
+
+        public Builder<S, E, C> on(S from, E event, S to) {
+            return this.on(from, event, null, to);
+        }
+
+        public Builder<S, E, C> on(S from, E event, Action<C> action, S to) {
+            this.next[from.ordinal()][event.ordinal()] = to.ordinal();
+            if(action != null) {
+                this.action[from.ordinal()][event.ordinal()] = this.actions.size();
+                this.actions.add(action);
+            }
+            return this;
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        public StateMachine<S, E, C> build() {
+            int[][] next = new int[this.next.length][], action = new int[this.action.length][];
+            for(int state = 0; state < next.length; state++) {
+                next[state] = this.next[state].clone();
+                action[state] = this.action[state].clone();
+            }
+            return new StateMachine<>(this.states, next, action, this.actions.toArray(new Action[0]));
+        }
+    }
+}
+
+// The states and events of the audio player. A locked player
+// remembers whether it was playing by being in a different
+// locked state, so the whole session state is one of these.
+enum PlayerState { READY, PLAYING, LOCKED_READY, LOCKED_PLAYING }
+
+enum PlayerEvent { LOCK, PLAY, NEXT, PREVIOUS }
+
+// The AudioPlayer class acts as a context. It also maintains the
+// state of the audio player, as an index into the shared state
+// machine compiled from the state classes below.
 class AudioPlayer {
-    State state;
-    String UI, playlist, currentAudio;
+    static final StateMachine<PlayerState, PlayerEvent, AudioPlayer> MACHINE =
+        State.compile(new LockedState(), new ReadyState(), new PlayingState());
+
+    private static final int LOCK = PlayerEvent.LOCK.ordinal(), PLAY = PlayerEvent.PLAY.ordinal(),
+        NEXT = PlayerEvent.NEXT.ordinal(), PREVIOUS = PlayerEvent.PREVIOUS.ordinal();
+
+    int state = PlayerState.READY.ordinal();
+    String UI, currentAudio;
+    Playlist playlist;
     int volume;
-    boolean playing = false;
+    // Service methods print what they do unless this is off.
+    boolean verbose = true;
+    // Plays the playlist, if there's something to play it on.
+    PlaybackPipeline playback;
 
     AudioPlayer() {
-        this.state = new ReadyState(this);
-
-        // Context delegates handling user input to a state
-        // object. Naturally, the outcome depends on what state
+        // Context delegates handling user input to the state
+        // machine. Naturally, the outcome depends on what state
         // is currently active, since each state can handle the
         // input differently.
         UI = "UserInterface";
@@ -25,145 +152,1008 @@ class AudioPlayer {
 
     // Other objects must be able to switch the audio player's
     // active state.
-    public void changeState(State state) { this.state = state; }
+    public void changeState(PlayerState state) { this.state = state.ordinal(); }
+
+    public PlayerState getState() { return MACHINE.stateOf(this.state); }
+
+    public boolean isPlaying() {
+        PlayerState state = this.getState();
+        return state == PlayerState.PLAYING || state == PlayerState.LOCKED_PLAYING;
+    }
+
+    // UI methods delegate execution to the state machine.
+    public void clickLock() { this.state = MACHINE.fire(this, this.state, LOCK); }
+    public void clickPlay() { this.state = MACHINE.fire(this, this.state, PLAY); }
+    public void clickNext() { this.state = MACHINE.fire(this, this.state, NEXT); }
+    public void clickPrevious() { this.state = MACHINE.fire(this, this.state, PREVIOUS); }
+
+    // Any event by its ordinal, for code that routes events around.
+    public void fire(int event) { this.state = MACHINE.fire(this, this.state, event); }
+
+    public void load(PlaybackPipeline playback, Playlist playlist) {
+        this.playback = playback;
+        this.playlist = playlist;
+        if(playlist.size() > 0) this.cue(playlist.track());
+    }
+
+    private void cue(PcmTrack track) {
+        this.currentAudio = track.path.getFileName().toString();
+        this.playback.cue(track);
+    }
 
-    // UI methods delegate execution to the active state.
-    public void clickLock() { this.state.clickLock(); }
-    public void clickPlay() { this.state.clickPlay(); }
-    public void clickNext() { this.state.clickNext(); }
-    public void clickPrevious() { this.state.clickPrevious(); }
+    private boolean hasPlayback() { return this.playback != null && this.playlist != null && this.playlist.size() > 0; }
 
     // A state may call some service methods on the context.
     public void startPlayback() {
-        System.out.println("Starting Playback");
+        if(this.verbose) System.out.println("Starting Playback");
+        if(this.hasPlayback()) this.playback.play();
     }
 
     public void stopPlayback() {
-        System.out.println("Stoping Playback");
+        if(this.verbose) System.out.println("Stoping Playback");
+        if(this.hasPlayback()) this.playback.pause();
     }
 
     public void nextAudio() {
-        System.out.println("Playing next Audio");
+        if(this.verbose) System.out.println("Playing next Audio");
+        if(this.hasPlayback()) this.cue(this.playlist.next());
     }
 
     public void previousAudio() {
-        System.out.println("Playing previous Audio");
+        if(this.verbose) System.out.println("Playing previous Audio");
+        if(this.hasPlayback()) this.cue(this.playlist.previous());
     }
 
+    // Seconds either way, from what's been played so far.
     public void fastForward(int time) {
-        System.out.println("Fast forward by: " + time);
+        if(this.verbose) System.out.println("Fast forward by: " + time);
+        if(this.hasPlayback()) this.playback.seek(time * 1000L);
     }
 
     public void rewind(int time) {
-        System.out.println("Rewinding by: " + time);
+        if(this.verbose) System.out.println("Rewinding by: " + time);
+        if(this.hasPlayback()) this.playback.seek(-time * 1000L);
     }
 }
 
-// The base state class declares methods that all concrete
-// states should implement and also provides a backreference to
-// the context object associated with the state. States can use
-// the backreference to transition the context to another state.
+// The base state class. Each concrete state still lives in a
+// class of its own, but rather than handling clicks directly it
+// declares how it handles them; the declarations of all states
+// are compiled into the player's state machine once.
 abstract class State {
-    protected AudioPlayer player;
+    abstract void describe(StateMachine.Builder<PlayerState, PlayerEvent, AudioPlayer> spec);
 
-    // Context passes itself through the state constructor. This
-    // may help a state fetch some useful context data if it's
-    // needed.
-    State(AudioPlayer player) { this.player = player; }
-
-    abstract void clickLock();
-    abstract void clickPlay();
-    abstract void clickNext();
-    abstract void clickPrevious();
+    static StateMachine<PlayerState, PlayerEvent, AudioPlayer> compile(State... states) {
+        StateMachine.Builder<PlayerState, PlayerEvent, AudioPlayer> spec =
+            StateMachine.builder(PlayerState.class, PlayerEvent.class);
+        for(State state : states) state.describe(spec);
+        return spec.build();
+    }
 }
 
-// Concrete states implement various behaviors associated with a
-// state of the context.
+// Concrete states declare the behaviors associated with a state
+// of the context.
 class LockedState extends State {
 
-    LockedState(AudioPlayer player) { super(player); }
+    @Override
+    void describe(StateMachine.Builder<PlayerState, PlayerEvent, AudioPlayer> spec) {
+        // When you unlock a locked player, it goes back to the
+        // state it was locked in.
+        spec.on(PlayerState.LOCKED_READY, PlayerEvent.LOCK, PlayerState.READY)
+            .on(PlayerState.LOCKED_PLAYING, PlayerEvent.LOCK, PlayerState.PLAYING);
+        // Locked, so nothing else does anything.
+    }
+}
 
-    // When you unlock a locked player, it may assume one of two
-    // states.
-    public void clickLock() {
-        if(this.player.playing) this.player.changeState(new PlayingState(this.player));
-        else this.player.changeState(new ReadyState(this.player));
+// They can also trigger state transitions in the context.
+class ReadyState extends State {
+
+    @Override
+    void describe(StateMachine.Builder<PlayerState, PlayerEvent, AudioPlayer> spec) {
+        spec.on(PlayerState.READY, PlayerEvent.LOCK, PlayerState.LOCKED_READY)
+            .on(PlayerState.READY, PlayerEvent.PLAY, AudioPlayer::startPlayback, PlayerState.PLAYING)
+            .on(PlayerState.READY, PlayerEvent.NEXT, AudioPlayer::nextAudio, PlayerState.READY)
+            .on(PlayerState.READY, PlayerEvent.PREVIOUS, AudioPlayer::previousAudio, PlayerState.READY);
     }
+}
+
+class PlayingState extends State {
 
     @Override
-    void clickPlay() {
-        // Locked, so do nothing
+    void describe(StateMachine.Builder<PlayerState, PlayerEvent, AudioPlayer> spec) {
+        spec.on(PlayerState.PLAYING, PlayerEvent.LOCK, PlayerState.LOCKED_PLAYING)
+            .on(PlayerState.PLAYING, PlayerEvent.PLAY, AudioPlayer::stopPlayback, PlayerState.READY)
+            // if (event.doubleclick)
+            //     player.nextAudio()
+            // else
+            //     player.fastForward(5)
+            .on(PlayerState.PLAYING, PlayerEvent.NEXT, AudioPlayer::nextAudio, PlayerState.PLAYING)
+            // if (event.doubleclick)
+            //     player.previousAudio()
+            // else
+            //     player.rewind(5)
+            .on(PlayerState.PLAYING, PlayerEvent.PREVIOUS, AudioPlayer::previousAudio, PlayerState.PLAYING);
     }
+}
+
+// Where decoded audio ends up: a sound device in a real player.
+// Writes may block, which is what paces playback.
+interface AudioSink extends AutoCloseable {
+    void write(ByteBuffer frame) throws IOException;
 
     @Override
-    void clickNext() {
-        // Locked, so do nothing
+    default void close() throws IOException {}
+}
+
+// Writes raw PCM to a file, a stand-in for a device in tests.
+class FileSink implements AudioSink {
+    private final FileChannel channel;
+
+    FileSink(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
     }
 
     @Override
-    void clickPrevious() {
-        // Locked, so do nothing
+    public void write(ByteBuffer frame) throws IOException {
+        while(frame.hasRemaining()) this.channel.write(frame);
     }
+
+    @Override
+    public void close() throws IOException { this.channel.close(); }
 }
 
-// They can also trigger state transitions in the context.
-class ReadyState extends State {
+// A PCM track, either a WAV file or headerless 16-bit stereo at
+// 44.1 kHz, mapped or read into memory. Decoding is a copy out of
+// memory and seeking is just picking another offset into it.
+final class PcmTrack {
+    final Path path;
+    private final ByteBuffer data;
+    private final int start, end, byteRate, blockAlign;
 
-    ReadyState(AudioPlayer player) { super(player); }
+    private PcmTrack(Path path, ByteBuffer data, int start, int end, int byteRate, int blockAlign) {
+        this.path = path;
+        this.data = data;
+        this.start = start;
+        this.end = end;
+        this.byteRate = byteRate;
+        this.blockAlign = blockAlign;
+    }
 
-    public void clickLock() {
-        this.player.changeState(new LockedState(this.player));
+    // Maps the file; pages are read in as they're played.
+    static PcmTrack open(Path path) throws IOException {
+        MappedByteBuffer data;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if(channel.size() > Integer.MAX_VALUE) throw new IOException("Track too large: " + path);
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return parse(path, data);
     }
-    
-    public void clickPlay() {
-        this.player.changeState(new PlayingState(this.player));
+
+    // Reads the whole file into memory, so nothing is left to
+    // wait for when it's played.
+    static PcmTrack load(Path path) throws IOException {
+        ByteBuffer data;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if(channel.size() > Integer.MAX_VALUE) throw new IOException("Track too large: " + path);
+            data = ByteBuffer.allocateDirect((int) channel.size());
+            while(data.hasRemaining()) {
+                if(channel.read(data) < 0) throw new IOException("Track truncated while reading: " + path);
+            }
+        }
+        return parse(path, data.flip());
     }
 
-    public void clickNext() {
-        this.player.nextAudio();
+    private static PcmTrack parse(Path path, ByteBuffer data) throws IOException {
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        if(data.limit() < 12 || data.getInt(0) != 0x46464952 || data.getInt(8) != 0x45564157) // "RIFF", "WAVE"
+            return new PcmTrack(path, data, 0, data.limit(), 44_100 * 4, 4);
+
+        int byteRate = 0, blockAlign = 0;
+        for(int chunk = 12; chunk + 8 <= data.limit(); ) {
+            int id = data.getInt(chunk), size = data.getInt(chunk + 4);
+            if(id == 0x20746d66) { // "fmt "
+                if(data.getShort(chunk + 8) != 1) throw new IOException("Not PCM: " + path);
+                byteRate = data.getInt(chunk + 16);
+                blockAlign = data.getShort(chunk + 20);
+            } else if(id == 0x61746164) { // "data"
+                if(blockAlign == 0) throw new IOException("Data before format: " + path);
+                int end = (int) Math.min(data.limit(), (long) chunk + 8 + Integer.toUnsignedLong(size));
+                return new PcmTrack(path, data, chunk + 8, end, byteRate, blockAlign);
+            }
+            chunk += 8 + size + (size & 1);
+        }
+        throw new IOException("No audio data: " + path);
+    }
+
+    int start() { return this.start; }
+    int end() { return this.end; }
+    int length() { return this.end - this.start; }
+
+    // The offset a number of milliseconds away from another one,
+    // kept on a frame boundary and inside the track.
+    int offsetAfter(int offset, long millis) {
+        long target = offset + millis * this.byteRate / 1000;
+        target -= (target - this.start) % this.blockAlign;
+        return (int) Math.max(this.start, Math.min(this.end, target));
     }
-    
-    public void clickPrevious() {
-        this.player.previousAudio();
+
+    // Copies up to the frame's capacity from the offset on and
+    // leaves the frame ready to be read.
+    int decode(int offset, ByteBuffer frame) {
+        int length = Math.min(frame.capacity(), this.end - offset);
+        frame.clear();
+        frame.put(0, this.data, offset, length);
+        frame.limit(length);
+        return length;
     }
 }
 
-class PlayingState extends State {
+// A ring of direct buffers handed from one producer to one
+// consumer. The buffers are allocated once and reused, and the
+// two sides only ever see each other through the head and tail.
+final class FrameRing {
+    private final ByteBuffer[] frames;
+    private final int[] offsets, generations;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
 
-    PlayingState(AudioPlayer player) { super(player); }
+    FrameRing(int count, int frameBytes) {
+        if(Integer.bitCount(count) != 1) throw new IllegalArgumentException("count must be a power of two: " + count);
+        this.frames = new ByteBuffer[count];
+        for(int i = 0; i < count; i++) this.frames[i] = ByteBuffer.allocateDirect(frameBytes);
+        this.offsets = new int[count];
+        this.generations = new int[count];
+        this.mask = count - 1;
+    }
 
-    @Override
-    void clickLock() {
-        this.player.changeState(new LockedState(this.player));
+    // Producer side: the next free frame or null if all are full,
+    // then publish() once it's filled.
+    ByteBuffer claim() {
+        long tail = this.tail.get();
+        return tail - this.head.get() == this.frames.length ? null : this.frames[(int) (tail & this.mask)];
     }
 
+    void publish(int offset, int generation) {
+        long tail = this.tail.get();
+        int slot = (int) (tail & this.mask);
+        this.offsets[slot] = offset;
+        this.generations[slot] = generation;
+        this.tail.lazySet(tail + 1);
+    }
+
+    // Consumer side: the oldest filled frame or null, what it was
+    // decoded from, then release() once it's used.
+    ByteBuffer peek() {
+        long head = this.head.get();
+        return head == this.tail.get() ? null : this.frames[(int) (head & this.mask)];
+    }
+
+    int offset() { return this.offsets[(int) (this.head.get() & this.mask)]; }
+    int generation() { return this.generations[(int) (this.head.get() & this.mask)]; }
+
+    void release() { this.head.lazySet(this.head.get() + 1); }
+}
+
+// The tracks to play and which one is up. The next few tracks
+// and the previous one are read into memory in the background, as
+// far as a memory cap allows, so moving between them doesn't wait
+// on the disk; anything else is mapped when it's switched to.
+// Like the player, a playlist belongs to one thread; only the
+// loading happens elsewhere.
+class Playlist implements AutoCloseable {
+    // A track being read in. Its bytes count against the cap from
+    // when it's queued until it's dropped; if it's dropped while
+    // it's being read, the loader lets go of them when it's done.
+    private final class Preload implements Runnable {
+        static final int QUEUED = 0, LOADING = 1, LOADED = 2, DROPPED = 3;
+
+        final Path path;
+        final long bytes;
+        final CompletableFuture<PcmTrack> track = new CompletableFuture<>();
+        final AtomicInteger state = new AtomicInteger(QUEUED);
+
+        Preload(Path path, long bytes) {
+            this.path = path;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void run() {
+            if(!this.state.compareAndSet(QUEUED, LOADING)) return;
+            PcmTrack loaded = null;
+            IOException failure = null;
+            try {
+                loaded = PcmTrack.load(this.path);
+            } catch(IOException e) {
+                failure = e;
+            }
+            if(!this.state.compareAndSet(LOADING, LOADED)) {
+                reserved.addAndGet(-this.bytes);
+                this.track.cancel(false);
+            } else if(failure != null) {
+                this.track.completeExceptionally(failure);
+            } else {
+                this.track.complete(loaded);
+            }
+        }
+
+        void drop() {
+            this.track.cancel(false);
+            // While it's loading, the loader releases the bytes.
+            if(this.state.getAndSet(DROPPED) != LOADING) reserved.addAndGet(-this.bytes);
+        }
+    }
+
+    private final List<Path> tracks;
+    private final long[] sizes;
+    private final int ahead;
+    private final long memoryCap;
+    private final ExecutorService loader;
+    private final Map<Integer, Preload> preloaded = new HashMap<>();
+    private final AtomicLong reserved = new AtomicLong();
+    private int index;
+    private long switches, hits, switchNanos, maxSwitchNanos;
+
+    Playlist(List<Path> tracks, int ahead, long memoryCap) throws IOException {
+        this.tracks = List.copyOf(tracks);
+        this.sizes = new long[tracks.size()];
+        for(int i = 0; i < this.sizes.length; i++) this.sizes[i] = Files.size(this.tracks.get(i));
+        this.ahead = ahead;
+        this.memoryCap = memoryCap;
+        this.loader = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "playlist-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.preload();
+    }
+
+    public int size() { return this.tracks.size(); }
+    public int index() { return this.index; }
+    public Path current() { return this.tracks.get(this.index); }
+
+    // The current track; doesn't count as a switch.
+    public PcmTrack track() {
+        PcmTrack track = this.preloaded(this.index);
+        return track != null ? track : this.open(this.index);
+    }
+
+    public PcmTrack next() { return this.select((this.index + 1) % this.size()); }
+    public PcmTrack previous() { return this.select((this.index + this.size() - 1) % this.size()); }
+
+    public PcmTrack select(int index) {
+        long start = System.nanoTime();
+        this.index = index;
+        PcmTrack track = this.preloaded(index);
+        if(track != null) this.hits++;
+        else track = this.open(index);
+        long elapsed = System.nanoTime() - start;
+        this.switches++;
+        this.switchNanos += elapsed;
+        this.maxSwitchNanos = Math.max(this.maxSwitchNanos, elapsed);
+        this.preload();
+        return track;
+    }
+
+    // The track if it's been read in, otherwise null.
+    private PcmTrack preloaded(int index) {
+        Preload preload = this.preloaded.get(index);
+        if(preload == null || !preload.track.isDone() || preload.track.isCompletedExceptionally()) return null;
+        return preload.track.join();
+    }
+
+    // Not loaded (yet): mapping it is quicker than waiting.
+    private PcmTrack open(int index) {
+        try {
+            return PcmTrack.open(this.tracks.get(index));
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Drops what's out of reach and starts loading what's in it,
+    // nearest first: the next track, the current one (the
+    // previous one after the next switch), the previous one, and
+    // then further ahead. A track that doesn't fit under the cap
+    // is skipped in case a smaller one after it does.
+    private void preload() {
+        int size = this.size();
+        Set<Integer> wanted = new LinkedHashSet<>();
+        if(size > 0) {
+            wanted.add((this.index + 1) % size);
+            wanted.add(this.index);
+            wanted.add((this.index + size - 1) % size);
+            for(int i = 2; i <= this.ahead; i++) wanted.add((this.index + i) % size);
+        }
+        for(Iterator<Map.Entry<Integer, Preload>> entries = this.preloaded.entrySet().iterator(); entries.hasNext(); ) {
+            Map.Entry<Integer, Preload> entry = entries.next();
+            if(wanted.contains(entry.getKey())) continue;
+            entry.getValue().drop();
+            entries.remove();
+        }
+        for(int wantedIndex : wanted) {
+            if(this.preloaded.containsKey(wantedIndex) || this.reserved.get() + this.sizes[wantedIndex] > this.memoryCap) continue;
+            this.reserved.addAndGet(this.sizes[wantedIndex]);
+            Preload preload = new Preload(this.tracks.get(wantedIndex), this.sizes[wantedIndex]);
+            this.preloaded.put(wantedIndex, preload);
+            this.loader.execute(preload);
+        }
+    }
+
+    // Switches so far, how many found their track already loaded,
+    // and how long they took.
+    public long switches() { return this.switches; }
+    public long preloadHits() { return this.hits; }
+    public long averageSwitchNanos() { return this.switches == 0 ? 0 : this.switchNanos / this.switches; }
+    public long maxSwitchNanos() { return this.maxSwitchNanos; }
+
+    // Memory held or being filled by preloaded tracks, including
+    // dropped ones still being read, never more than the cap.
+    public long preloadedBytes() { return this.reserved.get(); }
+    public long memoryCap() { return this.memoryCap; }
+
     @Override
-    void clickPlay() {
-        this.player.stopPlayback();
-        this.player.changeState(new ReadyState(this.player));
+    public void close() {
+        for(Preload preload : this.preloaded.values()) preload.drop();
+        this.preloaded.clear();
+        this.loader.shutdown();
+    }
+}
+
+// Plays tracks through a sink. A decoder thread fills the ring
+// ahead of an output thread that drains it into the sink. Every
+// play or seek is a new cue with a new generation; frames decoded
+// for an older cue are dropped instead of played. Once running,
+// neither thread allocates.
+class PlaybackPipeline implements AutoCloseable {
+    // What to play from where. Changes as a whole, so the threads
+    // never see a track with another track's offset.
+    private static final class Cue {
+        final PcmTrack track;
+        final int offset, generation;
+        volatile int played;
+
+        Cue(PcmTrack track, int offset, int generation) {
+            this.track = track;
+            this.offset = offset;
+            this.generation = generation;
+            this.played = offset;
+        }
+    }
+
+    private final AudioSink sink;
+    private final FrameRing ring;
+    private final Thread decoder, output;
+    private volatile Cue cue;
+    private volatile boolean playing, open = true;
+    private volatile IOException failure;
+    private final AtomicLong underruns = new AtomicLong(), bytesPlayed = new AtomicLong();
+    private int generation;
+
+    PlaybackPipeline(AudioSink sink, int frames, int frameBytes) {
+        this.sink = sink;
+        this.ring = new FrameRing(frames, frameBytes);
+        this.decoder = new Thread(this::decode, "playback-decoder");
+        this.output = new Thread(this::output, "playback-output");
+        this.decoder.setDaemon(true);
+        this.output.setDaemon(true);
+        this.decoder.start();
+        this.output.start();
+    }
+
+    // Switches to a track from its start, playing or paused as
+    // before.
+    public synchronized void cue(PcmTrack track) { this.cueAt(track, track.start()); }
+
+    public synchronized void play() {
+        this.checkFailure();
+        this.playing = true;
+        LockSupport.unpark(this.output);
+    }
+
+    public synchronized void pause() { this.playing = false; }
+
+    // Moves the play position by some milliseconds either way,
+    // counted from what was last played rather than decoded.
+    public synchronized void seek(long millis) {
+        Cue cue = this.cue;
+        if(cue != null) this.cueAt(cue.track, cue.track.offsetAfter(cue.played, millis));
+    }
+
+    private void cueAt(PcmTrack track, int offset) {
+        this.checkFailure();
+        this.cue = new Cue(track, offset, ++this.generation);
+        LockSupport.unpark(this.decoder);
+        LockSupport.unpark(this.output);
+    }
+
+    private void checkFailure() {
+        if(this.failure != null) throw new UncheckedIOException(this.failure);
+    }
+
+    public boolean isCued() { return this.cue != null; }
+    public boolean isPlaying() { return this.playing; }
+
+    // Whether the cued track has been played to its end.
+    public boolean isFinished() {
+        Cue cue = this.cue;
+        return cue != null && cue.played >= cue.track.end();
+    }
+
+    public PcmTrack track() {
+        Cue cue = this.cue;
+        return cue == null ? null : cue.track;
+    }
+
+    // The offset in the track that's been played up to.
+    public int position() {
+        Cue cue = this.cue;
+        return cue == null ? 0 : cue.played;
+    }
+
+    // Times the sink was ready for more while nothing was decoded.
+    public long underruns() { return this.underruns.get(); }
+    public long bytesPlayed() { return this.bytesPlayed.get(); }
+
+    long[] threadIds() { return new long[] { this.decoder.getId(), this.output.getId() }; }
+
+    private void decode() {
+        Cue cue = null;
+        int offset = 0;
+        while(this.open) {
+            Cue latest = this.cue;
+            if(latest != cue) {
+                cue = latest;
+                offset = cue.offset;
+            }
+            ByteBuffer frame = cue == null || offset >= cue.track.end() ? null : this.ring.claim();
+            if(frame == null) {
+                // Done with the track or the ring is full; either
+                // a new cue or the output thread wakes us up.
+                LockSupport.parkNanos(this, 10_000_000);
+                continue;
+            }
+            int length = cue.track.decode(offset, frame);
+            this.ring.publish(offset, cue.generation);
+            offset += length;
+            LockSupport.unpark(this.output);
+        }
+    }
+
+    private void output() {
+        int started = 0; // the last generation anything was played from
+        boolean starved = false;
+        while(this.open) {
+            Cue cue = this.cue;
+            ByteBuffer frame = this.ring.peek();
+            if(frame != null && (cue == null || this.ring.generation() != cue.generation)) {
+                this.ring.release(); // left over from an older cue
+                LockSupport.unpark(this.decoder);
+                continue;
+            }
+            if(!this.playing || cue == null || (frame == null && cue.played >= cue.track.end())) {
+                LockSupport.parkNanos(this, 10_000_000);
+                continue;
+            }
+            if(frame == null) {
+                // Still filling the ring after a new cue doesn't count.
+                if(!starved && started == cue.generation) this.underruns.incrementAndGet();
+                starved = true;
+                LockSupport.parkNanos(this, 100_000);
+                continue;
+            }
+            starved = false;
+            started = cue.generation;
+            int end = this.ring.offset() + frame.limit();
+            try {
+                this.sink.write(frame);
+            } catch(IOException e) {
+                this.failure = e;
+                this.playing = false;
+                continue;
+            }
+            this.bytesPlayed.addAndGet(frame.limit());
+            cue.played = end;
+            this.ring.release();
+            LockSupport.unpark(this.decoder);
+        }
     }
 
     @Override
-    void clickNext() {
-        // if (event.doubleclick)
-        //     player.nextAudio()
-        // else
-        //     player.fastForward(5)
-        this.player.nextAudio();
+    public void close() throws IOException {
+        this.open = false;
+        LockSupport.unpark(this.decoder);
+        LockSupport.unpark(this.output);
+        try {
+            this.decoder.join();
+            this.output.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.sink.close();
+    }
+}
+
+// A bounded, lock-free queue of longs for many producers and a
+// single consumer (after Dmitry Vyukov's bounded queue). Every slot
+// has a sequence number that tells producers when it's free and
+// the consumer when it's filled, so neither side ever locks or
+// allocates.
+final class MpscEventQueue {
+    private final long[] events;
+    private final AtomicLongArray sequence;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0; // only the consumer writes it
+
+    MpscEventQueue(int capacity) {
+        if(Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        this.events = new long[capacity];
+        this.sequence = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for(int i = 0; i < capacity; i++) this.sequence.set(i, i);
+    }
+
+    // Returns false if the queue is full.
+    public boolean offer(long event) {
+        long position;
+        int slot;
+        while(true) {
+            position = this.tail.get();
+            slot = (int) (position & this.mask);
+            long difference = this.sequence.get(slot) - position;
+            if(difference == 0) {
+                if(this.tail.compareAndSet(position, position + 1)) break;
+            } else if(difference < 0) {
+                return false;
+            }
+        }
+        this.events[slot] = event;
+        this.sequence.lazySet(slot, position + 1);
+        return true;
+    }
+
+    // Takes up to max events into the buffer and returns how many.
+    public int drain(long[] buffer, int max) {
+        long position = this.head;
+        int count = 0;
+        while(count < max) {
+            int slot = (int) (position & this.mask);
+            if(this.sequence.get(slot) != position + 1) break;
+            buffer[count++] = this.events[slot];
+            this.sequence.lazySet(slot, position + this.events.length);
+            position++;
+        }
+        this.head = position;
+        return count;
+    }
+
+    // Events offered so far, and events taken so far.
+    public long offered() { return this.tail.get(); }
+    public long taken() { return this.head; }
+}
+
+// Hosts a large number of player sessions. Sessions are split
+// into shards by id, and each shard is owned by one thread that
+// takes events from its queue in batches and applies them. Only
+// that thread ever touches the shard's players, so their fields
+// need no locks or volatiles, and adding shards (and cores) adds
+// throughput. Players are created on their first event.
+class PlayerSessionManager implements AutoCloseable {
+    private static final int BATCH = 256;
+
+    private final int sessions;
+    private final Shard[] shards;
+    private final Supplier<AudioPlayer> factory;
+    private volatile boolean running = true;
+
+    PlayerSessionManager(int sessions, int shardCount, int queueCapacity, Supplier<AudioPlayer> factory) {
+        if(sessions < 0) throw new IllegalArgumentException("sessions must not be negative: " + sessions);
+        if(shardCount < 1) throw new IllegalArgumentException("shardCount must be positive: " + shardCount);
+        this.sessions = sessions;
+        this.factory = factory;
+        this.shards = new Shard[shardCount];
+        for(int i = 0; i < shardCount; i++) {
+            int size = sessions / shardCount + (i < sessions % shardCount ? 1 : 0);
+            this.shards[i] = new Shard(i, size, queueCapacity);
+            this.shards[i].thread.start();
+        }
+    }
+
+    // Queues an event for a session. When the shard's queue is
+    // full, the caller waits for room, which throttles producers
+    // to what the shard can handle.
+    public void post(int sessionId, PlayerEvent event) {
+        this.checkOpen();
+        this.checkSession(sessionId);
+        Shard shard = this.shards[sessionId % this.shards.length];
+        long encoded = ((long) (sessionId / this.shards.length) << 8) | event.ordinal();
+        while(!shard.queue.offer(encoded)) {
+            LockSupport.unpark(shard.thread);
+            Thread.yield();
+        }
+        if(shard.idle) LockSupport.unpark(shard.thread);
+    }
+
+    // The shards' threads are gone once closed, so nothing would
+    // apply the event or wake a flush().
+    private void checkOpen() {
+        if(!this.running) throw new IllegalStateException("Session manager is closed");
+    }
+
+    private void checkSession(int sessionId) {
+        if(sessionId < 0 || sessionId >= this.sessions)
+            throw new IllegalArgumentException("No session " + sessionId + " among " + this.sessions);
+    }
+
+    // Waits until every event posted before this call is applied.
+    // Afterwards the sessions' state can be read from this thread.
+    public void flush() {
+        this.checkOpen();
+        for(Shard shard : this.shards) {
+            long target = shard.queue.offered();
+            while(shard.applied < target) {
+                LockSupport.unpark(shard.thread);
+                Thread.yield();
+            }
+        }
+    }
+
+    public PlayerState stateOf(int sessionId) {
+        this.checkSession(sessionId);
+        AudioPlayer player = this.shards[sessionId % this.shards.length].players[sessionId / this.shards.length];
+        return player == null ? PlayerState.READY : player.getState();
+    }
+
+    public long processed() {
+        long total = 0;
+        for(Shard shard : this.shards) total += shard.applied;
+        return total;
+    }
+
+    // Events that threw when applied; they're counted as processed
+    // and otherwise skipped, so that one can't stop a shard.
+    public long failures() {
+        long total = 0;
+        for(Shard shard : this.shards) total += shard.failures;
+        return total;
     }
 
     @Override
-    void clickPrevious() {
-        // if (event.doubleclick)
-        //     player.previousAudio()
-        // else
-        //     player.rewind(5)
-        this.player.previousAudio();
+    public void close() {
+        if(!this.running) return;
+        this.flush();
+        this.running = false;
+        for(Shard shard : this.shards) {
+            LockSupport.unpark(shard.thread);
+            try {
+                shard.thread.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class Shard implements Runnable {
+        final AudioPlayer[] players;
+        final MpscEventQueue queue;
+        final Thread thread;
+        volatile boolean idle = false;
+        // Only the shard's thread writes these. Applied is
+        // published after a batch is, so that flush() can wait
+        // for it.
+        volatile long applied, failures;
+
+        Shard(int index, int size, int queueCapacity) {
+            this.players = new AudioPlayer[size];
+            this.queue = new MpscEventQueue(queueCapacity);
+            this.thread = new Thread(this, "player-shard-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long[] batch = new long[BATCH];
+            int idleRounds = 0;
+            while(running || this.queue.taken() < this.queue.offered()) {
+                int count = this.queue.drain(batch, BATCH);
+                for(int i = 0; i < count; i++) {
+                    try {
+                        int slot = (int) (batch[i] >>> 8);
+                        AudioPlayer player = this.players[slot];
+                        if(player == null) player = this.players[slot] = factory.get();
+                        player.fire((int) (batch[i] & 0xff));
+                    } catch(RuntimeException e) {
+                        this.failures++;
+                    }
+                }
+                if(count > 0) this.applied += count;
+                if(count > 0) {
+                    idleRounds = 0;
+                } else if(++idleRounds < 100) {
+                    Thread.onSpinWait();
+                } else {
+                    // Nothing to do for a while: sleep until a
+                    // producer wakes us, checking again in case an
+                    // event slipped in before idle was visible.
+                    this.idle = true;
+                    if(this.queue.taken() == this.queue.offered()) LockSupport.parkNanos(1_000_000);
+                    this.idle = false;
+                }
+            }
+        }
+    }
+}
+
+// Drives a quiet player through millions of clicks and reports
+// the transition rate and the bytes the thread allocated while
+// doing it, which should be zero.
+class StateBenchmark {
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    static long clicks(AudioPlayer player, int rounds) {
+        for(int i = 0; i < rounds; i++) {
+            player.clickPlay();
+            player.clickNext();
+            player.clickLock();
+            player.clickPlay();
+            player.clickLock();
+            player.clickPrevious();
+        }
+        return rounds * 6L;
+    }
+
+    static void run(int rounds) {
+        AudioPlayer player = new AudioPlayer();
+        player.verbose = false;
+        clicks(player, rounds / 10); // let the JIT compile it first
+
+        // What reading the counter costs by itself.
+        long overhead = -allocatedBytes();
+        overhead += allocatedBytes();
+
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        long events = clicks(player, rounds);
+        long elapsed = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated - overhead;
+        System.out.printf("%,d transitions in %d ms (%,.0f per second), %,d bytes allocated%n",
+            events, elapsed / 1_000_000, events * 1e9 / elapsed, allocated);
+    }
+
+    // Writes seconds of a 16-bit stereo sine tone as a WAV file.
+    static Path tone(Path path, int seconds, int hertz) throws IOException {
+        int rate = 44_100, length = seconds * rate * 4;
+        ByteBuffer wav = ByteBuffer.allocate(44 + length).order(ByteOrder.LITTLE_ENDIAN);
+        wav.putInt(0x46464952).putInt(36 + length).putInt(0x45564157)
+            .putInt(0x20746d66).putInt(16).putShort((short) 1).putShort((short) 2)
+            .putInt(rate).putInt(rate * 4).putShort((short) 4).putShort((short) 16)
+            .putInt(0x61746164).putInt(length);
+        for(int i = 0; i < seconds * rate; i++) {
+            short sample = (short) (Math.sin(2 * Math.PI * hertz * i / rate) * 8000);
+            wav.putShort(sample).putShort(sample);
+        }
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            wav.flip();
+            while(wav.hasRemaining()) channel.write(wav);
+        }
+        return path;
+    }
+
+    // Plays two tracks into a file as fast as the file takes them
+    // and reports the rate, the underruns, and what the pipeline
+    // threads allocated while playing, which should be a few bytes
+    // at most, however long the tracks are. Then skips back and
+    // forth through a longer playlist and reports how long the
+    // switches took.
+    static void playback(int seconds) throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("playback");
+        Path[] tracks = { tone(directory.resolve("a.wav"), seconds, 440), tone(directory.resolve("b.wav"), seconds, 660) };
+        Path out = directory.resolve("out.pcm");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        try(PlaybackPipeline pipeline = new PlaybackPipeline(new FileSink(out), 16, 16 * 1024);
+                Playlist playlist = new Playlist(List.of(tracks), 2, 64L << 20)) {
+            AudioPlayer player = new AudioPlayer();
+            player.verbose = false;
+            player.load(pipeline, playlist);
+            long[] ids = pipeline.threadIds();
+            long allocated = Arrays.stream(threads.getThreadAllocatedBytes(ids)).sum();
+            long start = System.nanoTime();
+            player.clickPlay();
+            while(!pipeline.isFinished()) Thread.sleep(1);
+            player.clickNext();
+            while(!pipeline.isFinished()) Thread.sleep(1);
+            long elapsed = System.nanoTime() - start;
+            allocated = Arrays.stream(threads.getThreadAllocatedBytes(ids)).sum() - allocated;
+            System.out.printf("%,d bytes of audio played in %d ms (%.0fx real time), %d underruns, %,d bytes allocated%n",
+                pipeline.bytesPlayed(), elapsed / 1_000_000, 2.0 * seconds * 1e9 / elapsed, pipeline.underruns(), allocated);
+        }
+
+        // Six tracks, room for three of them, and a pause after
+        // each switch like a listener's.
+        List<Path> many = new ArrayList<>(List.of(tracks));
+        for(int i = 2; i < 6; i++) many.add(tone(directory.resolve(i + ".wav"), seconds, 220 * (i + 1)));
+        try(PlaybackPipeline pipeline = new PlaybackPipeline(new FileSink(out), 16, 16 * 1024);
+                Playlist playlist = new Playlist(many, 2, 3 * Files.size(tracks[0]))) {
+            AudioPlayer player = new AudioPlayer();
+            player.verbose = false;
+            player.load(pipeline, playlist);
+            player.clickPlay();
+            for(int i = 0; i < 30; i++) {
+                Thread.sleep(50);
+                if(i % 3 == 2) player.clickPrevious();
+                else player.clickNext();
+            }
+            System.out.printf("%d switches, %d preloaded, %,d ns on average, %,d ns at most, %,d of %,d bytes preloaded%n",
+                playlist.switches(), playlist.preloadHits(), playlist.averageSwitchNanos(), playlist.maxSwitchNanos(),
+                playlist.preloadedBytes(), playlist.memoryCap());
+        }
+        for(Path path : many) Files.delete(path);
+        Files.delete(out);
+        Files.delete(directory);
+    }
+
+    // Producers post events for random sessions to a sharded
+    // session manager, one producer per shard.
+    static void sharded(int sessions, int shards, int events) {
+        PlayerSessionManager manager = new PlayerSessionManager(sessions, shards, 1 << 16, () -> {
+            AudioPlayer player = new AudioPlayer();
+            player.verbose = false;
+            return player;
+        });
+        PlayerEvent[] kinds = PlayerEvent.values();
+        Thread[] producers = new Thread[shards];
+        long start = System.nanoTime();
+        for(int p = 0; p < producers.length; p++) {
+            int seed = p;
+            producers[p] = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                for(int i = 0; i < events / producers.length; i++)
+                    manager.post(random.nextInt(sessions), kinds[random.nextInt(kinds.length)]);
+            });
+            producers[p].start();
+        }
+        for(Thread producer : producers) {
+            try {
+                producer.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        manager.close();
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%,d events over %,d sessions on %d shards in %d ms (%,.0f per second)%n",
+            manager.processed(), sessions, shards, elapsed / 1_000_000, manager.processed() * 1e9 / elapsed);
+    }
+
+    // Many sessions need nothing but an int each; the machine and
+    // the (quiet) player its actions run on are shared.
+    static void sessions(int count, int rounds) {
+        AudioPlayer services = new AudioPlayer();
+        services.verbose = false;
+        StateMachine<PlayerState, PlayerEvent, AudioPlayer> machine = AudioPlayer.MACHINE;
+        int[] states = new int[count];
+        int[] script = new int[6];
+        PlayerEvent[] events = { PlayerEvent.PLAY, PlayerEvent.NEXT, PlayerEvent.LOCK, PlayerEvent.PLAY, PlayerEvent.LOCK, PlayerEvent.PREVIOUS };
+        for(int i = 0; i < script.length; i++) script[i] = events[i].ordinal();
+
+        long start = System.nanoTime();
+        for(int round = 0; round < rounds; round++)
+            for(int event : script)
+                for(int session = 0; session < count; session++)
+                    states[session] = machine.fire(services, states[session], event);
+        long elapsed = System.nanoTime() - start;
+        long fired = (long) count * rounds * script.length;
+        System.out.printf("%,d sessions in %,d KB of state: %,d transitions in %d ms (%,.0f per second)%n",
+            count, count * 4 / 1024, fired, elapsed / 1_000_000, fired * 1e9 / elapsed);
     }
 }
 
 public class StatePattern {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException, InterruptedException {
         AudioPlayer player = new AudioPlayer();
         player.clickLock();
         player.clickLock();
@@ -172,5 +1162,13 @@ public class StatePattern {
         player.clickNext();
         player.clickPrevious();
         player.clickLock();
+
+        // Pass "bench" to measure transitions without printing.
+        if(args.length > 0 && args[0].equals("bench")) {
+            StateBenchmark.run(10_000_000);
+            StateBenchmark.sessions(1_000_000, 10);
+            StateBenchmark.sharded(1_000_000, Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 20_000_000);
+            StateBenchmark.playback(60);
+        }
     }
 }
@@ -1,3 +1,21 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntBinaryOperator;
+import java.util.stream.IntStream;
 
 // The strategy interface declares operations common to all
 // supported versions of some algorithm. The context uses this
@@ -5,16 +23,50 @@
 // strategies.
 interface Strategy {
     public int execute(int a, int b);
+
+    // Applies the strategy to every pair, out[i] = execute(a[i],
+    // b[i]).
+    public default void executeBatch(int[] a, int[] b, int[] out) {
+        checkBatch(a, b, out);
+        this.executeRange(a, b, out, 0, out.length);
+    }
+
+    // The same for the pairs from one index up to another, without
+    // checking them. Strategies that can do it faster than one
+    // call per pair override this.
+    public default void executeRange(int[] a, int[] b, int[] out, int from, int to) {
+        for(int i = from; i < to; i++) out[i] = this.execute(a[i], b[i]);
+    }
+
+    // Whether execute(execute(x, y), z) == execute(x, execute(y, z))
+    // for all values, which lets a reduction with this strategy be
+    // split up and its parts combined in any grouping.
+    public default boolean isAssociative() { return false; }
+
+    static void checkBatch(int[] a, int[] b, int[] out) {
+        if(a.length < out.length || b.length < out.length)
+            throw new IllegalArgumentException("Operands shorter than output: " + a.length + ", " + b.length + " < " + out.length);
+    }
 }
 
 // Concrete strategies implement the algorithm while following
 // the base strategy interface. The interface makes them
-// interchangeable in the context.
+// interchangeable in the context. Their batch loops are plain
+// counted loops over arrays, which the JIT turns into SIMD code.
 class ConcreteStrategyAdd implements Strategy {
     @Override
     public int execute(int a, int b) {
         return a + b;
     }
+
+    @Override
+    public void executeRange(int[] a, int[] b, int[] out, int from, int to) {
+        for(int i = from; i < to; i++) out[i] = a[i] + b[i];
+    }
+
+    // Holds even when the result overflows.
+    @Override
+    public boolean isAssociative() { return true; }
 }
 
 class ConcreteStrategySubtract implements Strategy {
@@ -22,6 +74,11 @@ class ConcreteStrategySubtract implements Strategy {
     public int execute(int a, int b) {
         return a - b;
     }
+
+    @Override
+    public void executeRange(int[] a, int[] b, int[] out, int from, int to) {
+        for(int i = from; i < to; i++) out[i] = a[i] - b[i];
+    }
 }
 
 class ConcreteStrategyMultipy implements Strategy {
@@ -29,6 +86,14 @@ class ConcreteStrategyMultipy implements Strategy {
     public int execute(int a, int b) {
         return a * b;
     }
+
+    @Override
+    public void executeRange(int[] a, int[] b, int[] out, int from, int to) {
+        for(int i = from; i < to; i++) out[i] = a[i] * b[i];
+    }
+
+    @Override
+    public boolean isAssociative() { return true; }
 }
 
 // The context defines the interface of interest to clients.
@@ -38,18 +103,630 @@ class Context {
     // strategy. It should work with all strategies via the
     // strategy interface.
     private Strategy strategy;
+    // Big inputs can also be split into chunks and evaluated in
+    // parallel on a fork/join pool, the common one by default.
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private int chunkSize = 1 << 16;
 
     // Usually the context accepts a strategy through the
     // constructor, and also provides a setter so that the
     // strategy can be switched at runtime.
     public void setStrategy(Strategy strategy) { this.strategy = strategy; }
 
+    // Or it can be given several equivalent strategies and left to
+    // find out which is fastest for which input sizes.
+    public AdaptiveStrategy setAdaptive(double epsilon, Strategy... strategies) {
+        AdaptiveStrategy adaptive = new AdaptiveStrategy(epsilon, strategies);
+        this.strategy = adaptive;
+        return adaptive;
+    }
+
     // The context delegates some work to the strategy object
     // instead of implementing multiple versions of the
     // algorithm on its own.
     public int executeStrategy(int a, int b) {
         return this.strategy.execute(a, b);
     }
+
+    public void executeStrategy(int[] a, int[] b, int[] out) {
+        this.strategy.executeBatch(a, b, out);
+    }
+
+    public void setPool(ForkJoinPool pool) { this.pool = pool; }
+    public void setChunkSize(int chunkSize) { this.chunkSize = Math.max(1, chunkSize); }
+
+    public void executeParallel(int[] a, int[] b, int[] out) {
+        Strategy.checkBatch(a, b, out);
+        this.pool.invoke(new ChunkTask(ChunkTask.APPLY, this.strategy, a, b, out, 0, out.length, this.chunkSize));
+    }
+
+    // The sum of execute(a[i], b[i]) over all pairs.
+    public long sumParallel(int[] a, int[] b) {
+        return this.evaluate(ChunkTask.SUM, a, b);
+    }
+
+    // Their product, wrapping around like long multiplication.
+    public long productParallel(int[] a, int[] b) {
+        return this.evaluate(ChunkTask.PRODUCT, a, b);
+    }
+
+    private long evaluate(int kind, int[] a, int[] b) {
+        int length = Math.min(a.length, b.length);
+        ChunkTask task = new ChunkTask(kind, this.strategy, a, b, null, 0, length, this.chunkSize);
+        this.pool.invoke(task);
+        return task.result;
+    }
+
+    // Folds the values with the strategy, from left to right. Only
+    // an associative strategy is folded in parallel, since the
+    // chunks' results are combined in another grouping; others are
+    // folded one value at a time. Empty input has no result.
+    public OptionalInt reduce(int[] values) {
+        if(values.length == 0) return OptionalInt.empty();
+        if(!this.strategy.isAssociative() || values.length <= this.chunkSize) {
+            int result = values[0];
+            for(int i = 1; i < values.length; i++) result = this.strategy.execute(result, values[i]);
+            return OptionalInt.of(result);
+        }
+        ChunkTask task = new ChunkTask(ChunkTask.REDUCE, this.strategy, values, null, null, 0, values.length, this.chunkSize);
+        this.pool.invoke(task);
+        return OptionalInt.of((int) task.result);
+    }
+
+    public OptionalInt reduce(IntStream values) {
+        Strategy strategy = this.strategy;
+        if(!strategy.isAssociative()) return values.sequential().reduce(strategy::execute);
+        // A parallel stream runs in the pool it's started from.
+        return this.pool.submit(() -> values.parallel().reduce(strategy::execute)).join();
+    }
+}
+
+// One chunk of a parallel evaluation. It halves its range until
+// the range is a chunk or less, works through that, and combines
+// the halves' results on the way back, all in primitive fields.
+class ChunkTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    static final int APPLY = 0, SUM = 1, PRODUCT = 2, REDUCE = 3;
+
+    private final int kind;
+    private final Strategy strategy;
+    private final int[] a, b, out;
+    private final int from, to, chunkSize;
+    long result;
+
+    ChunkTask(int kind, Strategy strategy, int[] a, int[] b, int[] out, int from, int to, int chunkSize) {
+        this.kind = kind;
+        this.strategy = strategy;
+        this.a = a;
+        this.b = b;
+        this.out = out;
+        this.from = from;
+        this.to = to;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    protected void compute() {
+        if(this.to - this.from <= this.chunkSize) {
+            this.result = this.computeChunk();
+            return;
+        }
+        int middle = (this.from + this.to) >>> 1;
+        ChunkTask left = new ChunkTask(this.kind, this.strategy, this.a, this.b, this.out, this.from, middle, this.chunkSize);
+        ChunkTask right = new ChunkTask(this.kind, this.strategy, this.a, this.b, this.out, middle, this.to, this.chunkSize);
+        invokeAll(left, right);
+        switch(this.kind) {
+            case SUM: this.result = left.result + right.result; break;
+            case PRODUCT: this.result = left.result * right.result; break;
+            case REDUCE: this.result = this.strategy.execute((int) left.result, (int) right.result); break;
+            default: break;
+        }
+    }
+
+    private long computeChunk() {
+        switch(this.kind) {
+            case APPLY:
+                this.strategy.executeRange(this.a, this.b, this.out, this.from, this.to);
+                return 0;
+            case SUM: {
+                long sum = 0;
+                for(int i = this.from; i < this.to; i++) sum += this.strategy.execute(this.a[i], this.b[i]);
+                return sum;
+            }
+            case PRODUCT: {
+                long product = 1;
+                for(int i = this.from; i < this.to; i++) product *= this.strategy.execute(this.a[i], this.b[i]);
+                return product;
+            }
+            default: {
+                int result = this.a[this.from];
+                for(int i = this.from + 1; i < this.to; i++) result = this.strategy.execute(result, this.a[i]);
+                return result;
+            }
+        }
+    }
+}
+
+// Applies a strategy to big ranges in parallel chunks and to small
+// ones directly. It computes the same as the strategy it wraps;
+// only its speed differs, and whether it's faster depends on the
+// input size and the machine.
+class ParallelStrategy implements Strategy {
+    private final Strategy strategy;
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    ParallelStrategy(Strategy strategy, ForkJoinPool pool, int chunkSize) {
+        this.strategy = strategy;
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public int execute(int a, int b) { return this.strategy.execute(a, b); }
+
+    @Override
+    public void executeRange(int[] a, int[] b, int[] out, int from, int to) {
+        if(to - from <= this.chunkSize) this.strategy.executeRange(a, b, out, from, to);
+        else this.pool.invoke(new ChunkTask(ChunkTask.APPLY, this.strategy, a, b, out, from, to, this.chunkSize));
+    }
+
+    @Override
+    public boolean isAssociative() { return this.strategy.isAssociative(); }
+}
+
+// Picks among strategies that compute the same thing, whichever
+// has been fastest for inputs of about the same size. Sizes are
+// bucketed by powers of two. Most calls go straight to the
+// bucket's current pick without being timed; with a probability of
+// epsilon (and always until every strategy has a few samples in
+// the bucket) a call instead goes to the next strategy in turn and
+// is timed, and the pick is updated from the timings. Timings are
+// moving averages, so a pick can change when speeds do. While the
+// pick stays the same, exploring gets rarer, down to a 64th of
+// epsilon.
+//
+// Even a settled bucket pays for a random number and two atomic
+// reads on every call, which is a lot next to a batch of a few
+// elements, and such batches are too quick to time reliably anyway.
+// So single pairs and batches below MIN_TIMED elements aren't timed
+// or explored: they go to the first strategy, which should be the
+// one that's cheapest for small inputs.
+class AdaptiveStrategy implements Strategy {
+    private static final int BUCKETS = 32, MIN_SAMPLES = 3, MAX_BACKOFF = 64, MAX_PERIOD = 1 << 30;
+    static final int MIN_TIMED = 1 << 10;
+
+    private final Strategy[] strategies;
+    // One in how many calls explores, before and after backing off.
+    private final int explorePeriod, maxPeriod;
+    // Per bucket and strategy: average nanoseconds as double bits,
+    // and samples. Per bucket: the index of the pick (-1 until
+    // there is one) and one in how many calls explores.
+    private final AtomicLongArray averages, samples;
+    private final AtomicIntegerArray picks = new AtomicIntegerArray(BUCKETS), periods = new AtomicIntegerArray(BUCKETS);
+    private final AtomicLong explored = new AtomicLong();
+
+    AdaptiveStrategy(double epsilon, Strategy... strategies) {
+        if(strategies.length == 0) throw new IllegalArgumentException("No strategies to pick from");
+        if(!(epsilon > 0 && epsilon <= 1)) throw new IllegalArgumentException("epsilon must be in (0, 1]: " + epsilon);
+        this.strategies = strategies.clone();
+        // Rounded to a power of two, so a random int and a mask
+        // decide, and kept to one that an int holds even backed off.
+        this.explorePeriod = Integer.highestOneBit((int) Math.min(MAX_PERIOD, Math.round(1 / epsilon)));
+        this.maxPeriod = (int) Math.min((long) this.explorePeriod * MAX_BACKOFF, MAX_PERIOD);
+        this.averages = new AtomicLongArray(BUCKETS * strategies.length);
+        this.samples = new AtomicLongArray(BUCKETS * strategies.length);
+        for(int bucket = 0; bucket < BUCKETS; bucket++) {
+            this.picks.set(bucket, -1);
+            this.periods.set(bucket, this.explorePeriod);
+        }
+    }
+
+    static int bucketOf(int size) { return 32 - Integer.numberOfLeadingZeros(size); }
+
+    @Override
+    public int execute(int a, int b) { return this.strategies[0].execute(a, b); }
+
+    @Override
+    public void executeRange(int[] a, int[] b, int[] out, int from, int to) {
+        if(to - from < MIN_TIMED) {
+            this.strategies[0].executeRange(a, b, out, from, to);
+            return;
+        }
+        int bucket = bucketOf(to - from);
+        int pick = this.picks.get(bucket);
+        if(pick >= 0 && (ThreadLocalRandom.current().nextInt() & (this.periods.get(bucket) - 1)) != 0) {
+            this.strategies[pick].executeRange(a, b, out, from, to);
+            return;
+        }
+        int candidate = (int) (this.explored.getAndIncrement() % this.strategies.length);
+        long start = System.nanoTime();
+        this.strategies[candidate].executeRange(a, b, out, from, to);
+        this.record(bucket, candidate, System.nanoTime() - start);
+    }
+
+    private void record(int bucket, int candidate, long nanos) {
+        int slot = bucket * this.strategies.length + candidate;
+        long count = this.samples.incrementAndGet(slot);
+        double average = Double.longBitsToDouble(this.averages.get(slot));
+        this.averages.set(slot, Double.doubleToRawLongBits(count == 1 ? nanos : average + (nanos - average) / 8));
+
+        // No pick until every strategy has a few samples.
+        int best = 0;
+        for(int i = 0; i < this.strategies.length; i++) {
+            if(this.samples(bucket, i) < MIN_SAMPLES) return;
+            if(this.averageNanos(bucket, i) < this.averageNanos(bucket, best)) best = i;
+        }
+        if(this.picks.getAndSet(bucket, best) == best)
+            this.periods.set(bucket, (int) Math.min(2L * this.periods.get(bucket), this.maxPeriod));
+        else
+            this.periods.set(bucket, this.explorePeriod);
+    }
+
+    // Any of them may do a given reduction, so it's only safe to
+    // regroup if they're all associative.
+    @Override
+    public boolean isAssociative() {
+        for(Strategy strategy : this.strategies) {
+            if(!strategy.isAssociative()) return false;
+        }
+        return true;
+    }
+
+    public int strategyCount() { return this.strategies.length; }
+    public Strategy strategy(int index) { return this.strategies[index]; }
+
+    // What's been learned for inputs of a bucket's sizes, from 2^(bucket-1) to 2^bucket - 1.
+    public int pick(int bucket) { return this.picks.get(bucket); }
+    public long samples(int bucket, int strategy) { return this.samples.get(bucket * this.strategies.length + strategy); }
+    public double averageNanos(int bucket, int strategy) {
+        return Double.longBitsToDouble(this.averages.get(bucket * this.strategies.length + strategy));
+    }
+
+    public long explorations() { return this.explored.get(); }
+
+    // One line per bucket that has been used: the sizes, the pick
+    // and each strategy's average time and samples.
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        for(int bucket = 0; bucket < BUCKETS; bucket++) {
+            long total = 0;
+            for(int i = 0; i < this.strategies.length; i++) total += this.samples(bucket, i);
+            if(total == 0) continue;
+            report.append(String.format("sizes %,d-%,d: strategy %d", bucket == 0 ? 0 : 1L << (bucket - 1), (1L << bucket) - 1, this.pick(bucket)));
+            for(int i = 0; i < this.strategies.length; i++)
+                report.append(String.format(", %d: %,.0f ns (%d)", i, this.averageNanos(bucket, i), this.samples(bucket, i)));
+            report.append('\n');
+        }
+        return report.toString();
+    }
+}
+
+// Knows the strategies by name. Each name is looked up once and
+// turned into a method handle bound to its strategy, which is what
+// a StrategyCallSite installs.
+class StrategyRegistry {
+    private static final MethodType EXECUTE = MethodType.methodType(int.class, int.class, int.class);
+    private static final MethodType EXECUTE_RANGE = MethodType.methodType(void.class, int[].class, int[].class, int[].class, int.class, int.class);
+
+    private final Map<String, Strategy> strategies = new LinkedHashMap<>();
+    private final Map<String, MethodHandle> handles = new LinkedHashMap<>();
+    private final Map<String, MethodHandle> rangeHandles = new LinkedHashMap<>();
+
+    // The built-in strategies as "add", "sub" and "mul".
+    static StrategyRegistry standard() {
+        return new StrategyRegistry()
+            .register("add", new ConcreteStrategyAdd())
+            .register("sub", new ConcreteStrategySubtract())
+            .register("mul", new ConcreteStrategyMultipy());
+    }
+
+    public StrategyRegistry register(String name, Strategy strategy) {
+        this.strategies.put(name, strategy);
+        this.handles.remove(name);
+        this.rangeHandles.remove(name);
+        return this;
+    }
+
+    public Strategy resolve(String name) {
+        Strategy strategy = this.strategies.get(name);
+        if(strategy == null) throw new IllegalArgumentException("No strategy named " + name);
+        return strategy;
+    }
+
+    public Iterable<String> names() { return this.strategies.keySet(); }
+
+    public MethodHandle handle(String name) {
+        MethodHandle handle = this.handles.get(name);
+        if(handle == null) {
+            handle = bind(this.resolve(name));
+            this.handles.put(name, handle);
+        }
+        return handle;
+    }
+
+    public MethodHandle rangeHandle(String name) {
+        MethodHandle handle = this.rangeHandles.get(name);
+        if(handle == null) {
+            handle = bindRange(this.resolve(name));
+            this.rangeHandles.put(name, handle);
+        }
+        return handle;
+    }
+
+    // execute() of the strategy's own class, with the strategy as
+    // the receiver, so that calling it is a direct call.
+    static MethodHandle bind(Strategy strategy) { return bind(strategy, "execute", EXECUTE); }
+    static MethodHandle bindRange(Strategy strategy) { return bind(strategy, "executeRange", EXECUTE_RANGE); }
+
+    private static MethodHandle bind(Strategy strategy, String method, MethodType type) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            return lookup.findVirtual(strategy.getClass(), method, type).bindTo(strategy);
+        } catch(ReflectiveOperationException e) {
+            // Can't see its class from here, so go through the
+            // interface instead.
+            try {
+                return lookup.findVirtual(Strategy.class, method, type).bindTo(strategy);
+            } catch(ReflectiveOperationException impossible) {
+                throw new IllegalStateException(impossible);
+            }
+        }
+    }
+}
+
+// A call site for a strategy that can be switched at runtime
+// without the calls through it going megamorphic. The target is a
+// MutableCallSite: the JIT compiles calls through it as calls to
+// whatever the current strategy is, inlined, and recompiles when
+// bind() changes it. Calls are only inlined like that if the JIT
+// can see the invoker as a constant: for hot code, keep invoker()
+// in a static final field and invokeExact it. Calling execute()
+// works too, but goes through a field the JIT can't fold.
+final class StrategyCallSite implements Strategy {
+    private final StrategyRegistry registry;
+    private final MutableCallSite site, rangeSite;
+    private final MethodHandle invoker, rangeInvoker;
+    private volatile boolean associative;
+
+    private StrategyCallSite(StrategyRegistry registry, MutableCallSite site, MutableCallSite rangeSite, boolean associative) {
+        this.registry = registry;
+        this.site = site;
+        this.rangeSite = rangeSite;
+        this.invoker = site.dynamicInvoker();
+        this.rangeInvoker = rangeSite.dynamicInvoker();
+        this.associative = associative;
+    }
+
+    // A call site bound to the registry's strategy of that name.
+    static StrategyCallSite of(StrategyRegistry registry, String name) {
+        return new StrategyCallSite(registry, new MutableCallSite(registry.handle(name)),
+            new MutableCallSite(registry.rangeHandle(name)), registry.resolve(name).isAssociative());
+    }
+
+    // Calls whatever strategy is bound, as (int, int) -> int. It
+    // can't be used to change the binding.
+    public MethodHandle invoker() { return this.invoker; }
+
+    public void bind(String name) {
+        this.bind(this.registry.handle(name), this.registry.rangeHandle(name), this.registry.resolve(name).isAssociative());
+    }
+
+    public void bind(Strategy strategy) {
+        this.bind(StrategyRegistry.bind(strategy), StrategyRegistry.bindRange(strategy), strategy.isAssociative());
+    }
+
+    private void bind(MethodHandle handle, MethodHandle rangeHandle, boolean associative) {
+        this.site.setTarget(handle);
+        this.rangeSite.setTarget(rangeHandle);
+        this.associative = associative;
+        // Make sure other threads stop calling the old strategy.
+        MutableCallSite.syncAll(new MutableCallSite[] { this.site, this.rangeSite });
+    }
+
+    @Override
+    public int execute(int a, int b) {
+        try {
+            return (int) this.invoker.invokeExact(a, b);
+        } catch(RuntimeException | Error e) {
+            throw e;
+        } catch(Throwable e) {
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    // executeBatch() checks and comes here, as do parallel chunks.
+    @Override
+    public void executeRange(int[] a, int[] b, int[] out, int from, int to) {
+        try {
+            this.rangeInvoker.invokeExact(a, b, out, from, to);
+        } catch(RuntimeException | Error e) {
+            throw e;
+        } catch(Throwable e) {
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    @Override
+    public boolean isAssociative() { return this.associative; }
+}
+
+// Runs the strategies in turn, switching between rounds, and
+// times calls through the Strategy interface, through a lambda,
+// and through a bound call site. Not JMH, so read the numbers as
+// a rough comparison; the first rounds are only warm-up.
+class StrategyBenchmark {
+    static final StrategyRegistry REGISTRY = StrategyRegistry.standard();
+    static final StrategyCallSite BOUND = StrategyCallSite.of(REGISTRY, "add");
+    static final MethodHandle BOUND_INVOKER = BOUND.invoker();
+    static final Map<String, IntBinaryOperator> LAMBDAS = Map.of("add", (a, b) -> a + b, "sub", (a, b) -> a - b, "mul", (a, b) -> a * b);
+
+    static int viaContext(Context context, int count) {
+        int sum = 0;
+        for(int i = 0; i < count; i++) sum = context.executeStrategy(sum, i);
+        return sum;
+    }
+
+    static int viaLambda(IntBinaryOperator operator, int count) {
+        int sum = 0;
+        for(int i = 0; i < count; i++) sum = operator.applyAsInt(sum, i);
+        return sum;
+    }
+
+    static int viaCallSite(int count) {
+        int sum = 0;
+        try {
+            for(int i = 0; i < count; i++) sum = (int) BOUND_INVOKER.invokeExact(sum, i);
+        } catch(RuntimeException | Error e) {
+            throw e;
+        } catch(Throwable e) {
+            throw new UndeclaredThrowableException(e);
+        }
+        return sum;
+    }
+
+    interface Round { int run(String strategy, int count); }
+
+    static void time(String name, Round round, int count) {
+        String[] names = { "add", "sub", "mul" };
+        long elapsed = 0;
+        int result = 0;
+        for(int i = 0; i < 12; i++) {
+            long start = System.nanoTime();
+            result += round.run(names[i % names.length], count);
+            if(i >= 6) elapsed += System.nanoTime() - start;
+        }
+        System.out.printf("%-10s %.2f ns per call (%d)%n", name, elapsed / (6.0 * count), result);
+    }
+
+    // Checks the parallel paths against plain loops and times them
+    // against the sequential batch.
+    static void parallel(int rounds) {
+        int size = 1 << 22;
+        int[] a = new int[size], b = new int[size], out = new int[size];
+        for(int i = 0; i < size; i++) {
+            a[i] = i * 31;
+            b[i] = (i & 7) + 1;
+        }
+        Context context = new Context();
+        for(String name : new String[] { "add", "sub", "mul" }) {
+            Strategy strategy = REGISTRY.resolve(name);
+            context.setStrategy(strategy);
+            long sum = 0, product = 1;
+            int reduced = a[0];
+            for(int i = 0; i < size; i++) {
+                sum += strategy.execute(a[i], b[i]);
+                product *= strategy.execute(a[i], b[i]);
+                if(i > 0) reduced = strategy.execute(reduced, a[i]);
+            }
+            boolean same = context.sumParallel(a, b) == sum && context.productParallel(a, b) == product
+                && context.reduce(a).getAsInt() == reduced && context.reduce(IntStream.of(a)).getAsInt() == reduced;
+
+            long sequential = Long.MAX_VALUE, parallel = Long.MAX_VALUE;
+            for(int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                context.executeStrategy(a, b, out);
+                sequential = Math.min(sequential, System.nanoTime() - start);
+                start = System.nanoTime();
+                context.executeParallel(a, b, out);
+                parallel = Math.min(parallel, System.nanoTime() - start);
+            }
+            System.out.printf("%s: results %s, %.2f ms sequential, %.2f ms on %d threads%n", name, same ? "match" : "DIFFER",
+                sequential / 1e6, parallel / 1e6, ForkJoinPool.commonPool().getParallelism());
+        }
+    }
+
+    // Lets an adaptive context pick among equivalent ways to add
+    // for batches of many sizes, then compares what it costs per
+    // batch with a context that's been set to the pick by hand
+    // (after having had the others, as a context that's switched
+    // by hand would).
+    static void adaptive(int calls) {
+        int size = 1 << 20;
+        int[] a = new int[size], b = new int[size], out = new int[size];
+        for(int i = 0; i < size; i++) {
+            a[i] = i;
+            b[i] = size - i;
+        }
+        Strategy add = REGISTRY.resolve("add");
+        Strategy generic = LAMBDAS.get("add")::applyAsInt;
+        Context context = new Context();
+        AdaptiveStrategy adaptive = context.setAdaptive(0.02, add, generic, new ParallelStrategy(add, ForkJoinPool.commonPool(), 1 << 14));
+        SplittableRandom random = new SplittableRandom(7);
+        for(int i = 0; i < calls; i++) {
+            int length = 1 << random.nextInt(21);
+            context.executeStrategy(Arrays.copyOf(a, length), Arrays.copyOf(b, length), new int[length]);
+        }
+        System.out.print(adaptive);
+
+        // Small batches are where the overhead of choosing shows the
+        // most: below MIN_TIMED it's just a size check, above it a
+        // random number and two atomic reads.
+        for(int length : new int[] { 16, AdaptiveStrategy.MIN_TIMED }) {
+            int[] smallA = Arrays.copyOf(a, length), smallB = Arrays.copyOf(b, length), smallOut = new int[length];
+            Context manual = new Context();
+            for(int i = 0; i < adaptive.strategyCount(); i++) {
+                manual.setStrategy(adaptive.strategy(i));
+                for(int j = 0; j < calls; j++) manual.executeStrategy(smallA, smallB, smallOut);
+            }
+            manual.setStrategy(adaptive.strategy(Math.max(0, adaptive.pick(AdaptiveStrategy.bucketOf(length)))));
+            long direct = Long.MAX_VALUE, adapted = Long.MAX_VALUE;
+            for(int round = 0; round < 10; round++) {
+                long start = System.nanoTime();
+                for(int i = 0; i < calls; i++) manual.executeStrategy(smallA, smallB, smallOut);
+                direct = Math.min(direct, System.nanoTime() - start);
+                start = System.nanoTime();
+                for(int i = 0; i < calls; i++) context.executeStrategy(smallA, smallB, smallOut);
+                adapted = Math.min(adapted, System.nanoTime() - start);
+            }
+            System.out.printf("%,d-element batches: %.1f ns set by hand, %.1f ns adaptive%n",
+                length, (double) direct / calls, (double) adapted / calls);
+        }
+        System.out.printf("%,d explorations in all%n", adaptive.explorations());
+    }
+
+    // One call per pair against one call per array, for arrays of
+    // a million operands.
+    static void batch(int rounds) {
+        int size = 1 << 20;
+        int[] a = new int[size], b = new int[size], out = new int[size];
+        for(int i = 0; i < size; i++) {
+            a[i] = i * 31;
+            b[i] = i ^ 0x5555;
+        }
+        Context context = new Context();
+        for(String name : new String[] { "add", "sub", "mul" }) {
+            Strategy generic = LAMBDAS.get(name)::applyAsInt; // no batch loop of its own
+            for(Strategy strategy : new Strategy[] { REGISTRY.resolve(name), generic }) {
+                context.setStrategy(strategy);
+                long perPair = Long.MAX_VALUE, perArray = Long.MAX_VALUE;
+                for(int round = 0; round < rounds; round++) {
+                    long start = System.nanoTime();
+                    for(int i = 0; i < size; i++) out[i] = context.executeStrategy(a[i], b[i]);
+                    perPair = Math.min(perPair, System.nanoTime() - start);
+                    start = System.nanoTime();
+                    context.executeStrategy(a, b, out);
+                    perArray = Math.min(perArray, System.nanoTime() - start);
+                }
+                System.out.printf("%-4s %-8s %.2f ns per pair one by one, %.2f ns in a batch%n",
+                    name, strategy == generic ? "generic" : "built-in", (double) perPair / size, (double) perArray / size);
+            }
+        }
+    }
+
+    static void run(int count) {
+        Context context = new Context();
+        time("interface", (strategy, n) -> {
+            context.setStrategy(REGISTRY.resolve(strategy));
+            return viaContext(context, n);
+        }, count);
+        time("lambda", (strategy, n) -> viaLambda(LAMBDAS.get(strategy), n), count);
+        time("call site", (strategy, n) -> {
+            BOUND.bind(strategy);
+            return viaCallSite(n);
+        }, count);
+    }
 }
 
 public class StrategyPattern {
@@ -63,10 +740,17 @@ public class StrategyPattern {
 
         String action = "add";
 
-        if(action.equals("add")) context.setStrategy(new ConcreteStrategyAdd());
-        else if(action.equals("sub")) context.setStrategy(new ConcreteStrategySubtract());
-        else if(action.equals("mul")) context.setStrategy(new ConcreteStrategyMultipy());
+        StrategyRegistry registry = StrategyRegistry.standard();
+        context.setStrategy(registry.resolve(action));
 
         System.out.println("Result: " + context.executeStrategy(a, b));
+
+        // Pass "bench" to compare the ways of calling a strategy.
+        if(args.length > 0 && args[0].equals("bench")) {
+            StrategyBenchmark.run(20_000_000);
+            StrategyBenchmark.batch(50);
+            StrategyBenchmark.parallel(20);
+            StrategyBenchmark.adaptive(100_000);
+        }
     }
 }
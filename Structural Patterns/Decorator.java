@@ -1,3 +1,11 @@
+import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 // The component interface defines operations that can be
 // altered by decorators.
@@ -111,6 +119,371 @@ class CompressionDecorator extends DataSourceDecorator {
     }
 }
 
+// A decorator doesn't have to transform the data at all. This
+// one remembers what the wrapped stack returned, so repeated
+// reads of unchanged data skip decryption and decompression.
+// Every write bumps a generation counter, and the cached result is
+// tagged with the generation it was read in, so a stale value is
+// never returned. A data source holds a single value, so a single
+// cached value is all there is to keep.
+// Note that writes which bypass this decorator (e.g. straight to
+// the wrappee) are invisible to it.
+class CachingDecorator extends DataSourceDecorator {
+    private final boolean softValues;
+    // The cached string (or a soft reference to it) and the
+    // generation it belongs to.
+    private Object cached;
+    private long cachedGeneration = -1;
+    private long generation = 0;
+    private long hits = 0, misses = 0;
+
+    CachingDecorator(DataSource source) {
+        this(source, false);
+    }
+
+    // With softValues enabled the cached string is held through a
+    // soft reference, so the garbage collector may drop it under
+    // heap pressure and the next read simply goes through.
+    CachingDecorator(DataSource source, boolean softValues) {
+        super(source);
+        this.softValues = softValues;
+    }
+
+    @Override
+    public synchronized String readData() {
+        Object entry = this.cachedGeneration == this.generation ? this.cached : null;
+        if(entry instanceof SoftReference) entry = ((SoftReference<?>) entry).get();
+        String data = (String) entry;
+        if(data != null) {
+            this.hits++;
+            return data;
+        }
+        this.misses++;
+        data = this.wrappee.readData();
+        this.cached = data != null && this.softValues ? new SoftReference<>(data) : data;
+        this.cachedGeneration = this.generation;
+        return data;
+    }
+
+    @Override
+    public synchronized void writeData(String data) {
+        this.wrappee.writeData(data);
+        // Whatever is cached belongs to the old generation now.
+        this.generation++;
+        this.cached = null;
+    }
+
+    public synchronized long getGeneration() { return this.generation; }
+    public synchronized long getHits() { return this.hits; }
+    public synchronized long getMisses() { return this.misses; }
+}
+
+// A log-linear latency histogram in the spirit of HdrHistogram.
+// Values below 32ns get their own bucket; above that every power
+// of two is split into 16 sub-buckets, which keeps the relative
+// error around 6% across the whole range. Recording only touches
+// preallocated atomic counters, so it never allocates.
+class LatencyHistogram {
+    private static final int SUB_BUCKETS = 16;
+    private static final int BUCKETS = 1024;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    static int indexOf(long value) {
+        if(value < 2 * SUB_BUCKETS) return (int) Math.max(value, 0);
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long lowerBoundOf(int index) {
+        if(index < 2 * SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    public void record(long nanos) {
+        this.counts.incrementAndGet(indexOf(nanos));
+        this.total.incrementAndGet();
+        this.sum.addAndGet(nanos);
+        long current;
+        while(nanos > (current = this.max.get()) && !this.max.compareAndSet(current, nanos)) { }
+    }
+
+    // Snapshots copy the counters, so they may be taken while
+    // other threads keep recording.
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i++) copy[i] = this.counts.get(i);
+        return new Snapshot(copy, this.total.get(), this.sum.get(), this.max.get());
+    }
+
+    static class Snapshot {
+        private final long[] counts;
+        private final long count, sum, max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() { return this.count; }
+        public long getMax() { return this.max; }
+        public double getMean() { return this.count == 0 ? 0 : (double) this.sum / this.count; }
+
+        // Returns the lower bound of the bucket holding the given
+        // percentile (0-100).
+        public long getValueAtPercentile(double percentile) {
+            if(this.count == 0) return 0;
+            long target = Math.max(1, (long) Math.ceil(this.count * percentile / 100.0));
+            long seen = 0;
+            for(int i = 0; i < this.counts.length; i++) {
+                seen += this.counts[i];
+                if(seen >= target) return Math.min(lowerBoundOf(i), this.max);
+            }
+            return this.max;
+        }
+
+        public String toString() {
+            return "count=" + this.count + ", mean=" + (long) this.getMean() + "ns"
+                + ", p50=" + this.getValueAtPercentile(50) + "ns"
+                + ", p99=" + this.getValueAtPercentile(99) + "ns"
+                + ", max=" + this.max + "ns";
+        }
+    }
+}
+
+// Metrics are yet another decorator, so they can be slotted in at
+// any depth of the stack. Put one above and one below a layer to
+// see what that layer costs: the difference in latency is the
+// layer's own time, and the ratio of characters passed down is
+// its size ratio (e.g. the compression ratio).
+class MetricsDecorator extends DataSourceDecorator {
+    private final String name;
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private final AtomicLong charsRead = new AtomicLong();
+    private final AtomicLong charsWritten = new AtomicLong();
+
+    MetricsDecorator(String name, DataSource source) {
+        super(source);
+        this.name = name;
+    }
+
+    @Override
+    public String readData() {
+        long start = System.nanoTime();
+        String data = this.wrappee.readData();
+        this.readLatency.record(System.nanoTime() - start);
+        if(data != null) this.charsRead.addAndGet(data.length());
+        return data;
+    }
+
+    @Override
+    public void writeData(String data) {
+        long start = System.nanoTime();
+        this.wrappee.writeData(data);
+        this.writeLatency.record(System.nanoTime() - start);
+        if(data != null) this.charsWritten.addAndGet(data.length());
+    }
+
+    public String getName() { return this.name; }
+    public LatencyHistogram.Snapshot readSnapshot() { return this.readLatency.snapshot(); }
+    public LatencyHistogram.Snapshot writeSnapshot() { return this.writeLatency.snapshot(); }
+    public long getCharsRead() { return this.charsRead.get(); }
+    public long getCharsWritten() { return this.charsWritten.get(); }
+
+    // Size ratio of the data written through this layer versus
+    // what reached an inner metrics layer.
+    public double writeRatio(MetricsDecorator inner) {
+        long below = inner.getCharsWritten();
+        return below == 0 ? 0 : (double) this.getCharsWritten() / below;
+    }
+
+    public String toString() {
+        return "Metrics(" + this.name + ")\n  read:  " + this.readSnapshot() + ", chars=" + this.getCharsRead()
+            + "\n  write: " + this.writeSnapshot() + ", chars=" + this.getCharsWritten();
+    }
+}
+
+// A write-behind decorator buffers writes and lets a background
+// thread push them down in groups. Since a data source holds one
+// value, a group of writes is committed as a single write of the
+// newest value, so N small saves cost one pass through
+// compression, encryption and I/O. A group is flushed when the
+// buffer fills up, when the flush interval runs out, or when
+// flush() is called. Writers block while the buffer is full. A
+// failed commit isn't counted as committed; its futures fail, and
+// the next flush(), close(), readData() or writeData() throws.
+class WriteBehindDecorator extends DataSourceDecorator implements AutoCloseable {
+    private static class PendingWrite {
+        final String data;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingWrite(String data) { this.data = data; }
+    }
+
+    private final int capacity;
+    private final long flushIntervalNanos;
+    private final ArrayDeque<PendingWrite> buffer = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = this.lock.newCondition();
+    private final Condition notFull = this.lock.newCondition();
+    private final Condition flushed = this.lock.newCondition();
+    private final Thread flusher;
+    private boolean flushRequested = false, closed = false;
+    private long submitted = 0, committed = 0, failed = 0, batches = 0;
+    // The last commit that failed and hasn't been reported yet.
+    private Throwable failure;
+
+    WriteBehindDecorator(DataSource source, int capacity, long flushInterval, TimeUnit unit) {
+        super(source);
+        if(capacity < 1) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        this.flushIntervalNanos = unit.toNanos(flushInterval);
+        this.flusher = new Thread(this::runFlusher, "write-behind-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    // The returned future completes once the data (or a newer
+    // value that supersedes it) has reached the wrappee. That is
+    // the durability callback.
+    public CompletableFuture<Void> writeAsync(String data) {
+        PendingWrite write = new PendingWrite(data);
+        this.lock.lock();
+        try {
+            if(this.closed) throw new IllegalStateException("write-behind buffer is closed");
+            this.throwFailure();
+            while(this.buffer.size() >= this.capacity) {
+                this.notFull.awaitUninterruptibly();
+                if(this.closed) throw new IllegalStateException("write-behind buffer is closed");
+            }
+            this.buffer.addLast(write);
+            this.submitted++;
+            this.notEmpty.signal();
+        } finally {
+            this.lock.unlock();
+        }
+        return write.done;
+    }
+
+    @Override
+    public void writeData(String data) {
+        this.writeAsync(data);
+    }
+
+    // Reads flush first, so callers always see their own writes.
+    @Override
+    public String readData() {
+        this.flush();
+        return this.wrappee.readData();
+    }
+
+    // Blocks until everything written so far has been committed.
+    // If a commit failed since the last time a failure was thrown,
+    // that failure is thrown now.
+    public void flush() {
+        this.lock.lock();
+        try {
+            long target = this.submitted;
+            this.flushRequested = true;
+            this.notEmpty.signal();
+            while(this.committed + this.failed < target) this.flushed.awaitUninterruptibly();
+            this.throwFailure();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Reports a failed commit once, to whoever notices it first.
+    private void throwFailure() {
+        Throwable failure = this.failure;
+        if(failure == null) return;
+        this.failure = null;
+        throw new IllegalStateException("write-behind commit failed", failure);
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.flush();
+        } finally {
+            this.lock.lock();
+            try {
+                this.closed = true;
+                this.notEmpty.signal();
+                this.notFull.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    public long getBatchCount() {
+        this.lock.lock();
+        try { return this.batches; } finally { this.lock.unlock(); }
+    }
+
+    private void runFlusher() {
+        PendingWrite[] batch;
+        while(true) {
+            this.lock.lock();
+            try {
+                while(this.buffer.isEmpty() && !this.closed) this.notEmpty.awaitUninterruptibly();
+                if(this.buffer.isEmpty()) return;
+                // Give the batch time to grow unless it's full or
+                // somebody is waiting for it.
+                long remaining = this.flushIntervalNanos;
+                while(remaining > 0 && this.buffer.size() < this.capacity && !this.flushRequested && !this.closed) {
+                    try {
+                        remaining = this.notEmpty.awaitNanos(remaining);
+                    } catch(InterruptedException e) {
+                        break;
+                    }
+                }
+                batch = this.buffer.toArray(new PendingWrite[0]);
+                this.buffer.clear();
+                this.flushRequested = false;
+                this.notFull.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+
+            // Errors too: if they ended this thread, anyone waiting
+            // in flush() or close() would wait forever.
+            Throwable failure = null;
+            try {
+                this.wrappee.writeData(batch[batch.length - 1].data);
+            } catch(Throwable e) {
+                failure = e;
+            }
+            for(PendingWrite write : batch) {
+                if(failure == null) write.done.complete(null);
+                else write.done.completeExceptionally(failure);
+            }
+
+            this.lock.lock();
+            try {
+                if(failure == null) {
+                    this.committed += batch.length;
+                } else {
+                    this.failed += batch.length;
+                    this.failure = failure;
+                }
+                this.batches++;
+                this.flushed.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+}
+
 class Application {
     DataSource source;
     public void dumbUsageExample() {
@@ -169,5 +542,35 @@ public class Decorator {
 
         DataManager logger = new DataManager(source);
         System.out.println("Read with manager: " + logger.load());
+
+        // Caching is just another layer, usually the outermost one.
+        CachingDecorator cached = new CachingDecorator(source);
+        DataManager manager = new DataManager(cached);
+        manager.load();
+        manager.load(); // served from memory
+        manager.save("Hello again!");
+        System.out.println("Read after write: " + manager.load());
+        System.out.println("Cache hits: " + cached.getHits() + ", misses: " + cached.getMisses());
+
+        // Metrics layers around the compression layer show what it
+        // costs and how much it shrinks (or here, grows) the data.
+        MetricsDecorator file = new MetricsDecorator("file", new FileDataSource());
+        MetricsDecorator compression = new MetricsDecorator("compression", new CompressionDecorator(file));
+        for(int i = 0; i < 1000; i++) {
+            compression.writeData("Hello World!");
+            compression.readData();
+        }
+        System.out.println("\n" + compression + "\n" + file);
+        System.out.println("Compression ratio: " + compression.writeRatio(file));
+
+        // Many small saves are grouped into a few downstream writes.
+        MetricsDecorator stack = new MetricsDecorator("stack", new EncryptionDecorator(new CompressionDecorator(new FileDataSource())));
+        try(WriteBehindDecorator buffered = new WriteBehindDecorator(stack, 64, 5, TimeUnit.MILLISECONDS)) {
+            DataManager saver = new DataManager(buffered);
+            for(int i = 0; i < 1000; i++) saver.save("Entry " + i);
+            buffered.writeAsync("Last entry").thenRun(() -> System.out.println("\nLast entry is durable"));
+            System.out.println("Read with write-behind: " + saver.load());
+            System.out.println("1001 saves took " + stack.writeSnapshot().getCount() + " downstream writes in " + buffered.getBatchCount() + " batches");
+        }
     }
 }